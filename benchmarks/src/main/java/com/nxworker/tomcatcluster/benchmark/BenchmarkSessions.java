@@ -0,0 +1,122 @@
+package com.nxworker.tomcatcluster.benchmark;
+
+import com.nxworker.tomcatcluster.ClusterSession;
+import com.nxworker.tomcatcluster.ClusterSessionManager;
+import org.apache.catalina.core.StandardContext;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 测试用的session，按实际使用的几种形状构造
+ * <p>
+ * small：登录信息几个属性；wide：50个字符串和数字属性；graph：一个几百个对象组成的订单列表
+ */
+public class BenchmarkSessions {
+
+    public static final String SMALL = "small";
+    public static final String WIDE  = "wide";
+    public static final String GRAPH = "graph";
+
+    //ClusterSession每次setAttribute都打info日志，不关掉测的就是日志
+    private static final Logger QUIET = Logger.getLogger("com.nxworker.tomcatcluster");
+
+    static {
+        QUIET.setLevel(Level.WARNING);
+    }
+
+    private BenchmarkSessions() {
+
+    }
+
+    /**
+     * 不启动的manager，只给session提供context
+     *
+     * @return
+     */
+    public static ClusterSessionManager newManager() {
+
+        StandardContext context = new StandardContext();
+        context.setName("benchmark");
+        ClusterSessionManager manager = new ClusterSessionManager();
+        manager.setContext(context);
+        return manager;
+    }
+
+    public static ClusterSession newSession(ClusterSessionManager manager, String id, String shape) {
+
+        ClusterSession session = new ClusterSession(manager);
+        session.setValid(true);
+        session.setNew(false);
+        session.setCreationTime(System.currentTimeMillis());
+        session.setMaxInactiveInterval(1800);
+        session.setId(id);
+
+        if (SMALL.equals(shape)) {
+            session.putAttributeInternal("userId", 10086L);
+            session.putAttributeInternal("userName", "zhangsan");
+            session.putAttributeInternal("loginTime", new Date());
+        } else if (WIDE.equals(shape)) {
+            for (int i = 0 ; i < 25 ; i++) {
+                session.putAttributeInternal("text" + i, "value-" + i + "-abcdefghijklmnopqrstuvwxyz");
+                session.putAttributeInternal("number" + i, i * 1000);
+            }
+        } else if (GRAPH.equals(shape)) {
+            List<Order> orders = new ArrayList<Order>();
+            for (int i = 0 ; i < 100 ; i++) {
+                orders.add(new Order(i));
+            }
+            session.putAttributeInternal("userId", 10086L);
+            session.putAttributeInternal("orders", orders);
+        } else {
+            throw new IllegalArgumentException("unknown session shape " + shape);
+        }
+        return session;
+    }
+
+    /**
+     * 对象图里的订单，ClusterSerializer和CompactSerializer都要走Java序列化
+     */
+    public static class Order implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long                id;
+        private final Date                created;
+        private final List<Item>          items = new ArrayList<Item>();
+        private final Map<String, String> tags  = new HashMap<String, String>();
+
+        Order(long id) {
+
+            this.id = id;
+            this.created = new Date();
+            for (int i = 0 ; i < 3 ; i++) {
+                items.add(new Item("sku-" + id + "-" + i, i + 1, 9.9 * (i + 1)));
+            }
+            tags.put("channel", "web");
+            tags.put("coupon", "C" + id);
+        }
+    }
+
+    public static class Item implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String sku;
+        private final int    quantity;
+        private final double price;
+
+        Item(String sku, int quantity, double price) {
+
+            this.sku = sku;
+            this.quantity = quantity;
+            this.price = price;
+        }
+    }
+}
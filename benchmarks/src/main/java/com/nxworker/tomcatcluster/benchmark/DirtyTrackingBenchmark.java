@@ -0,0 +1,58 @@
+package com.nxworker.tomcatcluster.benchmark;
+
+import com.nxworker.tomcatcluster.ClusterSession;
+import com.nxworker.tomcatcluster.ClusterSessionManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * setAttribute的修改跟踪开销。在请求里面调用，修改只记到请求缓存，不写存储
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DirtyTrackingBenchmark {
+
+    private ClusterSession session;
+    private int            counter;
+
+    @Setup
+    public void setUp() {
+
+        ClusterSessionManager manager = BenchmarkSessions.newManager();
+        session = BenchmarkSessions.newSession(manager, "benchmarkSessionId0001", BenchmarkSessions.WIDE);
+        //setUp和测试方法在同一个线程上，之后的修改都记在这个请求里
+        manager.beginRequest();
+    }
+
+    @Benchmark
+    public void setUnchanged() {
+
+        session.setAttribute("text0", "value-0-abcdefghijklmnopqrstuvwxyz");
+    }
+
+    @Benchmark
+    public void setChanged() {
+
+        session.setAttribute("number0", counter++);
+    }
+
+    @Benchmark
+    public Object getAttribute() {
+
+        return session.getAttribute("text0");
+    }
+}
@@ -0,0 +1,71 @@
+package com.nxworker.tomcatcluster.benchmark;
+
+import com.nxworker.tomcatcluster.ClusterSessionIdGenerator;
+import com.nxworker.tomcatcluster.IdGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 生成session id，多线程下看共享随机数源的竞争
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IdGeneratorBenchmark {
+
+    private final IdGenerator               generator          = new IdGenerator();
+    private final ClusterSessionIdGenerator sessionIdGenerator = new ClusterSessionIdGenerator();
+
+    public IdGeneratorBenchmark() {
+
+        sessionIdGenerator.setJvmRoute("node1");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String uuidString1() {
+
+        return IdGenerator.getUUIDString();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String uuidString8() {
+
+        return IdGenerator.getUUIDString();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String uuid1() {
+
+        return generator.getUUID();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String uuid8() {
+
+        return generator.getUUID();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String sessionId8() {
+
+        return sessionIdGenerator.generateSessionId();
+    }
+}
@@ -0,0 +1,74 @@
+package com.nxworker.tomcatcluster.benchmark;
+
+import com.nxworker.tomcatcluster.ClusterSession;
+import com.nxworker.tomcatcluster.ClusterSessionManager;
+import com.nxworker.tomcatcluster.CompactSerializer;
+import com.nxworker.tomcatcluster.CompressingSerializer;
+import com.nxworker.tomcatcluster.Serializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 典型请求只用到一两个属性：读出session、取一个属性、改一个属性再序列化，比较延迟反序列化开关
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LazyAttributeBenchmark {
+
+    @Param({"false", "true"})
+    public boolean lazy;
+
+    @Param({BenchmarkSessions.WIDE, BenchmarkSessions.GRAPH})
+    public String shape;
+
+    private ClusterSessionManager manager;
+    private Serializer            serializer;
+    private byte[]                data;
+    private String                name;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        manager = BenchmarkSessions.newManager();
+        CompactSerializer compact = new CompactSerializer();
+        compact.setLazyAttributes(lazy);
+        serializer = new CompressingSerializer(compact, CompressingSerializer.CODEC_NONE, 1024);
+        serializer.setClassLoader(getClass().getClassLoader());
+        ClusterSession session = BenchmarkSessions.newSession(manager, "benchmarkSessionId0001", shape);
+        data = serializer.serializeFrom(session);
+        name = Collections.list(session.getAttributeNames()).get(0);
+    }
+
+    @Benchmark
+    public Object loadAndRead() throws Exception {
+
+        ClusterSession session = new ClusterSession(manager);
+        serializer.deserializeInto(data, session);
+        return session.getAttribute(name);
+    }
+
+    @Benchmark
+    public byte[] loadModifyAndSave() throws Exception {
+
+        ClusterSession session = new ClusterSession(manager);
+        serializer.deserializeInto(data, session);
+        session.putAttributeInternal("counter", System.nanoTime());
+        return serializer.serializeFrom(session);
+    }
+}
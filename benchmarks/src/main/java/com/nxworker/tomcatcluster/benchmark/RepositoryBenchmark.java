@@ -0,0 +1,98 @@
+package com.nxworker.tomcatcluster.benchmark;
+
+import com.nxworker.tomcatcluster.ClusterSession;
+import com.nxworker.tomcatcluster.ClusterSessionManager;
+import com.nxworker.tomcatcluster.CompressingSerializer;
+import com.nxworker.tomcatcluster.OffHeapSessionRepository;
+import com.nxworker.tomcatcluster.RedisHashRepository;
+import com.nxworker.tomcatcluster.RedisRepository;
+import com.nxworker.tomcatcluster.Serializer;
+import com.nxworker.tomcatcluster.SessionRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 存储的保存和加载，连的是进程内的RespStandIn，比较string和hash两种存储模式，
+ * offheap是不经过网络协议的进程内堆外存储，作为基准线
+ * <p>
+ * 每次保存前改一个属性，hash模式只写这一个字段，string和offheap模式写整个session
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RepositoryBenchmark {
+
+    @Param({"string", "hash", "offheap"})
+    public String storageMode;
+
+    @Param({"com.nxworker.tomcatcluster.ClusterSerializer", "com.nxworker.tomcatcluster.CompactSerializer"})
+    public String serializerClass;
+
+    @Param({BenchmarkSessions.SMALL, BenchmarkSessions.WIDE})
+    public String shape;
+
+    private RespStandIn           standIn;
+    private SessionRepository     repository;
+    private ClusterSessionManager manager;
+    private ClusterSession        session;
+    private int                   counter;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        standIn = new RespStandIn();
+        int port = standIn.start();
+
+        Serializer serializer = new CompressingSerializer((Serializer) Class.forName(serializerClass).newInstance(),
+                CompressingSerializer.CODEC_NONE, 1024);
+        serializer.setClassLoader(getClass().getClassLoader());
+        if ("offheap".equals(storageMode)) {
+            repository = new OffHeapSessionRepository(serializer);
+        } else if ("hash".equals(storageMode)) {
+            repository = new RedisHashRepository(serializer, "127.0.0.1", port, 2000, "", 0);
+        } else {
+            repository = new RedisRepository(serializer, "127.0.0.1", port, 2000, "", 0);
+        }
+
+        manager = BenchmarkSessions.newManager();
+        session = BenchmarkSessions.newSession(manager, "benchmarkSessionId0001", shape);
+        repository.save(session);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+
+        repository.close();
+        standIn.stop();
+    }
+
+    @Benchmark
+    public boolean save() {
+
+        Integer value = ++counter;
+        session.putAttributeInternal("counter", value);
+        session.getChangedAttributes().put("counter", value);
+        return repository.save(session);
+    }
+
+    @Benchmark
+    public Object find() throws Exception {
+
+        return repository.find("benchmarkSessionId0001", manager);
+    }
+}
@@ -0,0 +1,620 @@
+package com.nxworker.tomcatcluster.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 进程内的redis替身，只实现存储用到的命令，测试时不依赖外部redis，
+ * 测出来的是客户端、序列化和协议本身的开销，不含网络和真实redis的耗时
+ * <p>
+ * 支持 PING AUTH SELECT GET SET SETEX DEL EXPIRE TTL HGETALL HMSET HDEL MULTI EXEC DISCARD PUBLISH QUIT，
+ * ZADD ZREM ZCOUNT ZRANGEBYSCORE ZREMRANGEBYSCORE(分数范围只支持闭区间)，以及 EVAL EVALSHA SCRIPT LOAD。没有lua解释器，只认识存储用到的几个脚本(条件写入、读取并刷新、取到期session、删除过期session)，按脚本内容找到对应的java实现
+ */
+public class RespStandIn {
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private static final byte[] OK     = "+OK\r\n".getBytes(LATIN1);
+    private static final byte[] QUEUED = "+QUEUED\r\n".getBytes(LATIN1);
+    private static final byte[] NIL    = "$-1\r\n".getBytes(LATIN1);
+
+    private final Map<String, Entry> data = new ConcurrentHashMap<String, Entry>();
+
+    //加载过的脚本，sha到脚本内容
+    private final Map<String, String> scripts = new ConcurrentHashMap<String, String>();
+
+    private ServerSocket server;
+
+    private volatile boolean running;
+
+    /**
+     * 启动，监听本机随机端口
+     *
+     * @return 端口
+     * @throws IOException
+     */
+    public int start() throws IOException {
+
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        running = true;
+        Thread acceptor = new Thread(new Runnable() {
+
+            public void run() {
+
+                while (running) {
+                    try {
+                        final Socket socket = server.accept();
+                        socket.setTcpNoDelay(true);
+                        Thread worker = new Thread(new Runnable() {
+
+                            public void run() {
+
+                                serve(socket);
+                            }
+                        }, "resp-stand-in-connection");
+                        worker.setDaemon(true);
+                        worker.start();
+                    } catch (IOException e) {
+                        //关闭时accept抛异常，直接退出
+                    }
+                }
+            }
+        }, "resp-stand-in-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server.getLocalPort();
+    }
+
+    public void stop() throws IOException {
+
+        running = false;
+        server.close();
+    }
+
+    public int size() {
+
+        return data.size();
+    }
+
+    private void serve(Socket socket) {
+
+        try {
+            InputStream  in    = new BufferedInputStream(socket.getInputStream());
+            OutputStream out   = new BufferedOutputStream(socket.getOutputStream());
+            List<byte[]> queue = null;
+            while (true) {
+                List<byte[]> command = readCommand(in);
+                if (command == null) {
+                    break;
+                }
+                String name = new String(command.get(0), LATIN1).toUpperCase();
+                if ("QUIT".equals(name)) {
+                    out.write(OK);
+                    out.flush();
+                    break;
+                } else if ("MULTI".equals(name)) {
+                    queue = new ArrayList<byte[]>();
+                    out.write(OK);
+                } else if ("DISCARD".equals(name)) {
+                    queue = null;
+                    out.write(OK);
+                } else if ("EXEC".equals(name)) {
+                    //事务里的命令在这里一起执行，回复拼成一个数组
+                    List<byte[]> replies = queue == null ? new ArrayList<byte[]>() : queue;
+                    queue = null;
+                    writeLine(out, '*', replies.size());
+                    for (byte[] reply : replies) {
+                        out.write(reply);
+                    }
+                } else if (queue != null) {
+                    ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                    execute(name, command, reply);
+                    queue.add(reply.toByteArray());
+                    out.write(QUEUED);
+                } else {
+                    execute(name, command, out);
+                }
+                //pipeline的命令一起到，读完了再一起回
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            //连接断开
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //忽略
+            }
+        }
+    }
+
+    private void execute(String name, List<byte[]> args, OutputStream out) throws IOException {
+
+        if ("PING".equals(name)) {
+            out.write("+PONG\r\n".getBytes(LATIN1));
+        } else if ("AUTH".equals(name) || "SELECT".equals(name)) {
+            out.write(OK);
+        } else if ("GET".equals(name)) {
+            Entry entry = live(key(args, 1));
+            writeBulk(out, entry == null || !(entry.value instanceof byte[]) ? null : (byte[]) entry.value);
+        } else if ("SET".equals(name)) {
+            data.put(key(args, 1), new Entry(args.get(2), 0));
+            out.write(OK);
+        } else if ("SETEX".equals(name)) {
+            data.put(key(args, 1), new Entry(args.get(3), deadline(args.get(2))));
+            out.write(OK);
+        } else if ("DEL".equals(name)) {
+            int removed = 0;
+            for (int i = 1 ; i < args.size() ; i++) {
+                if (data.remove(key(args, i)) != null) {
+                    removed++;
+                }
+            }
+            writeLine(out, ':', removed);
+        } else if ("EXPIRE".equals(name)) {
+            Entry entry = live(key(args, 1));
+            if (entry != null) {
+                entry.expireAt = deadline(args.get(2));
+            }
+            writeLine(out, ':', entry == null ? 0 : 1);
+        } else if ("TTL".equals(name)) {
+            Entry entry = live(key(args, 1));
+            long  ttl   = entry == null ? -2 : entry.expireAt == 0 ? -1
+                    : (entry.expireAt - System.currentTimeMillis() + 999) / 1000;
+            writeLine(out, ':', ttl);
+        } else if ("HGETALL".equals(name)) {
+            Entry entry = live(key(args, 1));
+            Map<String, byte[]> hash = entry == null ? new HashMap<String, byte[]>() : hash(entry);
+            synchronized (hash) {
+                writeLine(out, '*', hash.size() * 2);
+                for (Map.Entry<String, byte[]> field : hash.entrySet()) {
+                    writeBulk(out, field.getKey().getBytes(LATIN1));
+                    writeBulk(out, field.getValue());
+                }
+            }
+        } else if ("HMSET".equals(name)) {
+            String key   = key(args, 1);
+            Entry  entry = live(key);
+            if (entry == null || !(entry.value instanceof Map)) {
+                entry = new Entry(new HashMap<String, byte[]>(), 0);
+                data.put(key, entry);
+            }
+            Map<String, byte[]> hash = hash(entry);
+            synchronized (hash) {
+                for (int i = 2 ; i + 1 < args.size() ; i += 2) {
+                    hash.put(new String(args.get(i), LATIN1), args.get(i + 1));
+                }
+            }
+            out.write(OK);
+        } else if ("HDEL".equals(name)) {
+            Entry entry   = live(key(args, 1));
+            int   removed = 0;
+            if (entry != null && entry.value instanceof Map) {
+                Map<String, byte[]> hash = hash(entry);
+                synchronized (hash) {
+                    for (int i = 2 ; i < args.size() ; i++) {
+                        if (hash.remove(new String(args.get(i), LATIN1)) != null) {
+                            removed++;
+                        }
+                    }
+                }
+            }
+            writeLine(out, ':', removed);
+        } else if ("SCRIPT".equals(name) && "LOAD".equalsIgnoreCase(key(args, 1))) {
+            String script = key(args, 2);
+            String sha    = sha1Hex(args.get(2));
+            scripts.put(sha, script);
+            writeBulk(out, sha.getBytes(LATIN1));
+        } else if ("EVAL".equals(name)) {
+            String script = key(args, 1);
+            scripts.put(sha1Hex(args.get(1)), script);
+            eval(script, args, out);
+        } else if ("EVALSHA".equals(name)) {
+            String script = scripts.get(key(args, 1));
+            if (script == null) {
+                out.write("-NOSCRIPT No matching script. Please use EVAL.\r\n".getBytes(LATIN1));
+            } else {
+                eval(script, args, out);
+            }
+        } else if (name.startsWith("Z")) {
+            sortedSet(name, args, out);
+        } else if ("PUBLISH".equals(name)) {
+            writeLine(out, ':', 0);
+        } else {
+            out.write(("-ERR unknown command '" + name + "'\r\n").getBytes(LATIN1));
+        }
+    }
+
+    /**
+     * sorted set命令，和脚本用同一把锁
+     *
+     * @param name
+     * @param args
+     * @param out
+     * @throws IOException
+     */
+    private synchronized void sortedSet(String name, List<byte[]> args, OutputStream out) throws IOException {
+
+        String              key    = key(args, 1);
+        Entry               entry  = live(key);
+        Map<String, Double> scores = entry != null && entry.value instanceof ZSet ? ((ZSet) entry.value).scores : null;
+        if ("ZADD".equals(name)) {
+            if (scores == null) {
+                scores = new HashMap<String, Double>();
+                data.put(key, new Entry(new ZSet(scores), 0));
+            }
+            int added = 0;
+            for (int i = 2 ; i + 1 < args.size() ; i += 2) {
+                if (scores.put(key(args, i + 1), score(args.get(i))) == null) {
+                    added++;
+                }
+            }
+            writeLine(out, ':', added);
+        } else if ("ZREM".equals(name)) {
+            int removed = 0;
+            for (int i = 2 ; scores != null && i < args.size() ; i++) {
+                if (scores.remove(key(args, i)) != null) {
+                    removed++;
+                }
+            }
+            writeLine(out, ':', removed);
+        } else if ("ZCOUNT".equals(name)) {
+            writeLine(out, ':', range(scores, args).size());
+        } else if ("ZRANGEBYSCORE".equals(name)) {
+            List<Map.Entry<String, Double>> range      = range(scores, args);
+            boolean                         withScores = false;
+            int                             offset     = 0;
+            int                             count      = -1;
+            for (int i = 4 ; i < args.size() ; i++) {
+                if ("WITHSCORES".equalsIgnoreCase(key(args, i))) {
+                    withScores = true;
+                } else if ("LIMIT".equalsIgnoreCase(key(args, i))) {
+                    offset = Integer.parseInt(key(args, i + 1));
+                    count = Integer.parseInt(key(args, i + 2));
+                    i += 2;
+                }
+            }
+            int end = count < 0 ? range.size() : Math.min(range.size(), offset + count);
+            range = offset >= end ? new ArrayList<Map.Entry<String, Double>>() : range.subList(offset, end);
+            writeLine(out, '*', withScores ? range.size() * 2 : range.size());
+            for (Map.Entry<String, Double> member : range) {
+                writeBulk(out, member.getKey().getBytes(LATIN1));
+                if (withScores) {
+                    writeBulk(out, String.valueOf(member.getValue()).getBytes(LATIN1));
+                }
+            }
+        } else if ("ZREMRANGEBYSCORE".equals(name)) {
+            List<Map.Entry<String, Double>> range = range(scores, args);
+            for (Map.Entry<String, Double> member : range) {
+                scores.remove(member.getKey());
+            }
+            writeLine(out, ':', range.size());
+        } else {
+            out.write(("-ERR unknown command '" + name + "'\r\n").getBytes(LATIN1));
+        }
+    }
+
+    /**
+     * 分数在args[2]和args[3]之间的成员，按分数排序
+     *
+     * @param scores
+     * @param args
+     * @return
+     */
+    private static List<Map.Entry<String, Double>> range(Map<String, Double> scores, List<byte[]> args) {
+
+        List<Map.Entry<String, Double>> range = new ArrayList<Map.Entry<String, Double>>();
+        if (scores == null) {
+            return range;
+        }
+        double min = score(args.get(2));
+        double max = score(args.get(3));
+        for (Map.Entry<String, Double> member : scores.entrySet()) {
+            if (member.getValue() >= min && member.getValue() <= max) {
+                range.add(new AbstractMap.SimpleImmutableEntry<String, Double>(member));
+            }
+        }
+        Collections.sort(range, new Comparator<Map.Entry<String, Double>>() {
+
+            public int compare(Map.Entry<String, Double> a, Map.Entry<String, Double> b) {
+
+                int c = Double.compare(a.getValue(), b.getValue());
+                return c != 0 ? c : a.getKey().compareTo(b.getKey());
+            }
+        });
+        return range;
+    }
+
+    private static double score(byte[] arg) {
+
+        String value = new String(arg, LATIN1);
+        if ("+inf".equals(value) || "inf".equals(value)) {
+            return Double.POSITIVE_INFINITY;
+        } else if ("-inf".equals(value)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return Double.parseDouble(value);
+    }
+
+    /**
+     * 执行存储用到的脚本，整个脚本在锁里执行，和redis一样是原子的
+     *
+     * @param script
+     * @param args   EVAL或EVALSHA的完整参数
+     * @param out
+     * @throws IOException
+     */
+    private synchronized void eval(String script, List<byte[]> args, OutputStream out) throws IOException {
+
+        int          keyCount = Integer.parseInt(key(args, 2));
+        List<byte[]> keys     = args.subList(3, 3 + keyCount);
+        List<byte[]> argv     = args.subList(3 + keyCount, args.size());
+        String       key      = new String(keys.get(0), LATIN1);
+        Entry        entry    = live(key);
+        if (script.contains("string.byte(current, 1) == 243")) {
+            //按版本头条件写入
+            byte[] current = entry == null || !(entry.value instanceof byte[]) ? null : (byte[]) entry.value;
+            if (current != null && !versionMatches(current, argv.get(0))) {
+                writeBulk(out, current);
+                return;
+            }
+            long ttl = Long.parseLong(new String(argv.get(2), LATIN1));
+            data.put(key, new Entry(argv.get(1), ttl > 0 ? deadline(argv.get(2)) : 0));
+            if (keys.size() > 1) {
+                zadd(keys.get(1), argv.get(3), argv.get(4));
+            }
+            writeLine(out, ':', 1);
+        } else if (script.contains("'ZRANGEBYSCORE'")) {
+            //取出到期的索引成员
+            List<byte[]> bounds = new ArrayList<byte[]>();
+            bounds.add(null);
+            bounds.add(null);
+            bounds.add("-inf".getBytes(LATIN1));
+            bounds.add(argv.get(0));
+            Map<String, Double>             scores = entry != null && entry.value instanceof ZSet ? ((ZSet) entry.value).scores : null;
+            List<Map.Entry<String, Double>> due    = range(scores, bounds);
+            due = due.subList(0, Math.min(due.size(), Integer.parseInt(new String(argv.get(1), LATIN1))));
+            writeLine(out, '*', due.size());
+            for (Map.Entry<String, Double> member : due) {
+                scores.remove(member.getKey());
+                writeBulk(out, member.getKey().getBytes(LATIN1));
+            }
+        } else if (script.contains("'DEL'")) {
+            //还在宽限期里才删
+            long ttl = entry == null ? -2 : entry.expireAt == 0 ? -1 : (entry.expireAt - System.currentTimeMillis() + 999) / 1000;
+            boolean expired = ttl >= 0 && ttl <= Long.parseLong(new String(argv.get(0), LATIN1));
+            if (expired) {
+                data.remove(key);
+            }
+            writeLine(out, ':', expired ? 1 : 0);
+        } else if (script.contains("'HGETALL'") || script.contains("'GET'")) {
+            //读取并在快到期时刷新过期时间
+            boolean isHash = script.contains("'HGETALL'");
+            if (entry == null || (isHash ? !(entry.value instanceof Map) || hash(entry).isEmpty() : !(entry.value instanceof byte[]))) {
+                out.write(NIL);
+                return;
+            }
+            long ttl = entry.expireAt == 0 ? -1 : (entry.expireAt - System.currentTimeMillis() + 999) / 1000;
+            if (ttl >= 0 && ttl < Long.parseLong(new String(argv.get(2), LATIN1))) {
+                //已经过期，在宽限期里
+                out.write(NIL);
+                return;
+            }
+            if (ttl >= 0 && ttl <= Long.parseLong(new String(argv.get(1), LATIN1))) {
+                entry.expireAt = deadline(argv.get(0));
+                ttl = Long.parseLong(new String(argv.get(0), LATIN1));
+                if (keys.size() > 1) {
+                    zadd(keys.get(1), argv.get(3), argv.get(4));
+                }
+            }
+            writeLine(out, '*', 2);
+            if (isHash) {
+                Map<String, byte[]> hash = hash(entry);
+                synchronized (hash) {
+                    writeLine(out, '*', hash.size() * 2);
+                    for (Map.Entry<String, byte[]> field : hash.entrySet()) {
+                        writeBulk(out, field.getKey().getBytes(LATIN1));
+                        writeBulk(out, field.getValue());
+                    }
+                }
+            } else {
+                writeBulk(out, (byte[]) entry.value);
+            }
+            writeLine(out, ':', ttl);
+        } else {
+            out.write("-ERR unsupported script\r\n".getBytes(LATIN1));
+        }
+    }
+
+    /**
+     * 脚本里的ZADD
+     *
+     * @param key
+     * @param score
+     * @param member
+     * @throws IOException
+     */
+    private void zadd(byte[] key, byte[] score, byte[] member) throws IOException {
+
+        List<byte[]> args = new ArrayList<byte[]>();
+        args.add("ZADD".getBytes(LATIN1));
+        args.add(key);
+        args.add(score);
+        args.add(member);
+        sortedSet("ZADD", args, new ByteArrayOutputStream());
+    }
+
+    private static boolean versionMatches(byte[] current, byte[] expected) {
+
+        if (expected.length == 0) {
+            return current.length == 0 || current[0] != (byte) 0xF3;
+        }
+        if (current.length < expected.length) {
+            return false;
+        }
+        for (int i = 0 ; i < expected.length ; i++) {
+            if (current[i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String sha1Hex(byte[] script) {
+
+        try {
+            StringBuilder hex = new StringBuilder(40);
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(script)) {
+                hex.append(Character.forDigit((b >> 4) & 0x0F, 16)).append(Character.forDigit(b & 0x0F, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, byte[]> hash(Entry entry) {
+
+        return (Map<String, byte[]>) entry.value;
+    }
+
+    private static String key(List<byte[]> args, int index) {
+
+        return new String(args.get(index), LATIN1);
+    }
+
+    private static long deadline(byte[] seconds) {
+
+        return System.currentTimeMillis() + Long.parseLong(new String(seconds, LATIN1)) * 1000;
+    }
+
+    /**
+     * 取没过期的值，过期的顺便删掉
+     *
+     * @param key
+     * @return
+     */
+    private Entry live(String key) {
+
+        Entry entry = data.get(key);
+        if (entry != null && entry.expireAt != 0 && entry.expireAt <= System.currentTimeMillis()) {
+            data.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private static List<byte[]> readCommand(InputStream in) throws IOException {
+
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        if (first != '*') {
+            throw new IOException("unexpected request type " + (char) first);
+        }
+        int          count = (int) readNumber(in);
+        List<byte[]> args  = new ArrayList<byte[]>(count);
+        for (int i = 0 ; i < count ; i++) {
+            if (in.read() != '$') {
+                throw new IOException("expected bulk string");
+            }
+            byte[] arg  = new byte[(int) readNumber(in)];
+            int    read = 0;
+            while (read < arg.length) {
+                int n = in.read(arg, read, arg.length - read);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                read += n;
+            }
+            in.read();
+            in.read();
+            args.add(arg);
+        }
+        return args;
+    }
+
+    private static long readNumber(InputStream in) throws IOException {
+
+        long    value    = 0;
+        boolean negative = false;
+        int     b;
+        while ((b = in.read()) != '\r') {
+            if (b == -1) {
+                throw new EOFException();
+            }
+            if (b == '-') {
+                negative = true;
+            } else {
+                value = value * 10 + (b - '0');
+            }
+        }
+        in.read();
+        return negative ? -value : value;
+    }
+
+    private static void writeLine(OutputStream out, char type, long value) throws IOException {
+
+        out.write((type + Long.toString(value) + "\r\n").getBytes(LATIN1));
+    }
+
+    private static void writeBulk(OutputStream out, byte[] value) throws IOException {
+
+        if (value == null) {
+            out.write(NIL);
+            return;
+        }
+        writeLine(out, '$', value.length);
+        out.write(value);
+        out.write('\r');
+        out.write('\n');
+    }
+
+    /**
+     * sorted set的值，和hash的Map区分开
+     */
+    private static class ZSet {
+
+        private final Map<String, Double> scores;
+
+        ZSet(Map<String, Double> scores) {
+
+            this.scores = scores;
+        }
+    }
+
+    private static class Entry {
+
+        private final    Object value;
+        private volatile long   expireAt;
+
+        Entry(Object value, long expireAt) {
+
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+}
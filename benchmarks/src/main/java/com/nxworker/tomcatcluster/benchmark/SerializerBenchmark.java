@@ -0,0 +1,67 @@
+package com.nxworker.tomcatcluster.benchmark;
+
+import com.nxworker.tomcatcluster.ClusterSession;
+import com.nxworker.tomcatcluster.ClusterSessionManager;
+import com.nxworker.tomcatcluster.CompressingSerializer;
+import com.nxworker.tomcatcluster.Serializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 序列化和反序列化整个session，比较序列化方式、压缩算法和session形状
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializerBenchmark {
+
+    @Param({"com.nxworker.tomcatcluster.ClusterSerializer", "com.nxworker.tomcatcluster.CompactSerializer"})
+    public String serializerClass;
+
+    @Param({CompressingSerializer.CODEC_NONE, CompressingSerializer.CODEC_LZF, CompressingSerializer.CODEC_DEFLATE})
+    public String codec;
+
+    @Param({BenchmarkSessions.SMALL, BenchmarkSessions.WIDE, BenchmarkSessions.GRAPH})
+    public String shape;
+
+    private ClusterSessionManager manager;
+    private Serializer            serializer;
+    private ClusterSession        session;
+    private byte[]                data;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        manager = BenchmarkSessions.newManager();
+        serializer = new CompressingSerializer((Serializer) Class.forName(serializerClass).newInstance(), codec, 1024);
+        serializer.setClassLoader(getClass().getClassLoader());
+        session = BenchmarkSessions.newSession(manager, "benchmarkSessionId0001", shape);
+        data = serializer.serializeFrom(session);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+
+        return serializer.serializeFrom(session);
+    }
+
+    @Benchmark
+    public Object deserialize() throws Exception {
+
+        return serializer.deserializeInto(data, new ClusterSession(manager));
+    }
+}
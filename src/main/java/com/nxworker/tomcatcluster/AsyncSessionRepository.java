@@ -0,0 +1,38 @@
+package com.nxworker.tomcatcluster;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+
+import java.util.concurrent.Future;
+
+/**
+ * 非阻塞的session存储，操作马上返回Future，结果在别的线程上完成
+ */
+public interface AsyncSessionRepository {
+
+    /**
+     * 异步读取session，存储里面没有时Future的结果是null
+     *
+     * @param id
+     * @param manager
+     * @return
+     */
+    public Future<Session> findAsync(String id, Manager manager);
+
+    /**
+     * 异步保存session
+     *
+     * @param session
+     * @return 是否真的写了存储
+     */
+    public Future<Boolean> saveAsync(Session session);
+
+    public Future<Void> removeAsync(Session session);
+
+    public Future<Void> expireAsync(Session session, int seconds);
+
+    /**
+     * 停止异步执行，不关闭底层的存储
+     */
+    public void close();
+}
@@ -0,0 +1,19 @@
+package com.nxworker.tomcatcluster;
+
+import java.io.IOException;
+
+/**
+ * 单独存放的大属性，session里只留key，用到时再从这里读
+ */
+public interface BlobStore {
+
+    /**
+     * 读出单独存放的属性值
+     *
+     * @param key
+     * @return 找不到返回null
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    Object loadBlob(String key) throws IOException, ClassNotFoundException;
+}
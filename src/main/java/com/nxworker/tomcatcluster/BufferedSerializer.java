@@ -0,0 +1,22 @@
+package com.nxworker.tomcatcluster;
+
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+
+/**
+ * 能直接写进SerializationBuffer、直接读数组一段的序列化
+ * <p>
+ * 压缩层用它省掉未压缩数据的中间数组，序列化结果在可重复使用的缓冲里压缩完，只复制一次最终结果
+ */
+public interface BufferedSerializer extends Serializer {
+
+    void serializeFrom(HttpSession session, SerializationBuffer out) throws IOException;
+
+    void serializeAttribute(Object value, SerializationBuffer out) throws IOException;
+
+    HttpSession deserializeInto(byte[] data, int offset, int length, HttpSession session) throws IOException, ClassNotFoundException;
+
+    Object deserializeAttribute(byte[] data, int offset, int length) throws IOException, ClassNotFoundException;
+
+    long contentDigest(byte[] data, int offset, int length, HttpSession session);
+}
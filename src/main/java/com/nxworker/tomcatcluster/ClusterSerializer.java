@@ -6,7 +6,7 @@ import javax.servlet.http.HttpSession;
 import java.io.*;
 
 
-public class ClusterSerializer implements Serializer {
+public class ClusterSerializer implements BufferedSerializer {
 
     private ClassLoader loader = null;
 
@@ -17,27 +17,106 @@ public class ClusterSerializer implements Serializer {
 
     public byte[] serializeFrom(HttpSession session) throws IOException {
 
-        ClusterSession        clusterSession = (ClusterSession) session;
-        ByteArrayOutputStream bos            = new ByteArrayOutputStream();
-        ObjectOutputStream    oos            = new ObjectOutputStream(new BufferedOutputStream(bos));
+        SerializationBuffer out = SerializationBuffer.acquire();
+        try {
+            serializeFrom(session, out);
+            return out.toByteArray();
+        } finally {
+            out.release();
+        }
+    }
+
+    public void serializeFrom(HttpSession session, SerializationBuffer out) throws IOException {
+
+        //直接写进缓冲，缓冲本身就是内存数组，不用再套BufferedOutputStream
+        ClusterSession     clusterSession = (ClusterSession) session;
+        ObjectOutputStream oos            = new ObjectOutputStream(out);
         oos.writeLong(clusterSession.getCreationTime());
         clusterSession.writeObjectData(oos);
 
-        oos.close();
-
-        return bos.toByteArray();
+        oos.flush();
     }
 
     public HttpSession deserializeInto(byte[] data, HttpSession session) throws IOException, ClassNotFoundException {
 
-        ClusterSession clusterSession = (ClusterSession) session;
+        return deserializeInto(data, 0, data.length, session);
+    }
+
+    public HttpSession deserializeInto(byte[] data, int offset, int length, HttpSession session) throws IOException, ClassNotFoundException {
 
-        BufferedInputStream bis = new BufferedInputStream(new ByteArrayInputStream(data));
+        ClusterSession clusterSession = (ClusterSession) session;
 
-        ObjectInputStream ois = new CustomObjectInputStream(bis, loader);
+        ObjectInputStream ois = new CustomObjectInputStream(new ByteArrayInputStream(data, offset, length), loader);
         clusterSession.setCreationTime(ois.readLong());
         clusterSession.readObjectData(ois);
 
         return session;
     }
+
+    /**
+     * writeObjectData先写创建时间、访问时间等，再写id和属性，摘要从id开始算，访问时间变了不影响。
+     * 万一找错位置也只是多写一次，不会漏写
+     *
+     * @param data
+     * @param session
+     * @return
+     */
+    public long contentDigest(byte[] data, HttpSession session) {
+
+        return contentDigest(data, 0, data.length, session);
+    }
+
+    public long contentDigest(byte[] data, int offset, int length, HttpSession session) {
+
+        byte[] id    = session.getId().getBytes();
+        int    start = indexOf(data, offset, offset + length, id);
+        if (start < 0) {
+            start = offset;
+        }
+        return ContentDigest.hash64(data, start, offset + length - start);
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte[] target) {
+
+        outer:
+        for (int i = from ; i <= to - target.length ; i++) {
+            for (int j = 0 ; j < target.length ; j++) {
+                if (data[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    public byte[] serializeAttribute(Object value) throws IOException {
+
+        SerializationBuffer out = SerializationBuffer.acquire();
+        try {
+            serializeAttribute(value, out);
+            return out.toByteArray();
+        } finally {
+            out.release();
+        }
+    }
+
+    public void serializeAttribute(Object value, SerializationBuffer out) throws IOException {
+
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(value);
+
+        oos.flush();
+    }
+
+    public Object deserializeAttribute(byte[] data) throws IOException, ClassNotFoundException {
+
+        return deserializeAttribute(data, 0, data.length);
+    }
+
+    public Object deserializeAttribute(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+
+        ObjectInputStream ois = new CustomObjectInputStream(new ByteArrayInputStream(data, offset, length), loader);
+        return ois.readObject();
+    }
 }
@@ -3,8 +3,16 @@ package com.nxworker.tomcatcluster;
 import org.apache.catalina.Manager;
 import org.apache.catalina.session.StandardSession;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 
@@ -28,8 +36,33 @@ public class ClusterSession extends StandardSession {
 
 
     protected HashMap<String, Object> changedAttributes;
+    protected HashSet<String>         removedAttributes;
     protected Boolean                 dirty;
 
+    //同一个session对象可能同时被几个请求使用(近端缓存、属主模式、合并读取)，
+    //修改记录的读写都在session上同步，下面这些存储状态用volatile
+    //是否已经在存储里面，没有的话要整个写进去
+    protected transient volatile boolean persisted = false;
+
+    //最近一次读写存储时序列化后的大小
+    protected transient volatile int serializedSize = 0;
+
+    //最近一次在存储里设置过期时间的时刻
+    protected transient volatile long lastTouchedTime = 0;
+
+    //存储里的版本号，0表示存储里还没有或者是没带版本的老数据
+    protected transient volatile long version = 0;
+
+    //最近一次读写存储时序列化内容的摘要，hash存储模式下按属性记录
+    protected transient volatile long              contentDigest    = 0;
+    protected transient          Map<String, Long> attributeDigests = new ConcurrentHashMap<String, Long>();
+
+    //单独存放的大属性，属性名对应存放的key
+    protected transient Map<String, String> offloadedKeys = new ConcurrentHashMap<String, String>();
+
+    //读单独存放的大属性用的存储
+    protected transient volatile BlobStore blobStore;
+
     public ClusterSession(Manager manager) {
 
         super(manager);
@@ -41,22 +74,143 @@ public class ClusterSession extends StandardSession {
         super.invalidate();
     }
 
-    public Boolean isDirty() {
+    public synchronized Boolean isDirty() {
 
-        return dirty || !changedAttributes.isEmpty();
+        return dirty || !changedAttributes.isEmpty() || !removedAttributes.isEmpty();
     }
 
+    /**
+     * 是否被整体标记为脏数据(手动标记或者principal修改)，这时候不能只写修改过的属性
+     *
+     * @return
+     */
+    public synchronized boolean isFullyDirty() {
+
+        return dirty;
+    }
+
+    /**
+     * 修改过的属性，别的线程可能同时在改，遍历时要在session上同步
+     *
+     * @return
+     */
     public HashMap<String, Object> getChangedAttributes() {
 
         return changedAttributes;
     }
 
+    public HashSet<String> getRemovedAttributes() {
+
+        return removedAttributes;
+    }
+
+    public boolean isPersisted() {
+
+        return persisted;
+    }
+
+    public void setPersisted(boolean persisted) {
+
+        this.persisted = persisted;
+    }
+
+    public int getSerializedSize() {
+
+        return serializedSize;
+    }
+
+    public void setSerializedSize(int serializedSize) {
+
+        this.serializedSize = serializedSize;
+    }
+
+    public long getLastTouchedTime() {
+
+        return lastTouchedTime;
+    }
+
+    public void setLastTouchedTime(long lastTouchedTime) {
+
+        this.lastTouchedTime = lastTouchedTime;
+    }
+
+    public long getContentDigest() {
+
+        return contentDigest;
+    }
+
+    public void setContentDigest(long contentDigest) {
+
+        this.contentDigest = contentDigest;
+    }
+
+    public long getVersion() {
+
+        return version;
+    }
+
+    public void setVersion(long version) {
+
+        this.version = version;
+    }
+
     /**
-     * 重置为非脏数据
+     * 写入时版本冲突，把存储里的最新内容合并进来。
+     * 本次保存修改或删除过的属性、保存开始后又被修改的属性以本地的为准，其他属性以存储里的为准
+     *
+     * @param stored  存储里的最新内容
+     * @param changed 本次保存修改过的属性
+     * @param removed 本次保存删除过的属性
      */
-    public void resetDirtyTracking() {
+    public synchronized void mergeFrom(ClusterSession stored, Set<String> changed, Set<String> removed) {
+
+        for (Map.Entry<String, Object> entry : stored.attributes.entrySet()) {
+            String name = entry.getKey();
+            if (!isLocallyModified(name, changed, removed)) {
+                attributes.put(name, entry.getValue());
+                String key = stored.offloadedKeys.get(name);
+                if (key != null) {
+                    offloadedKeys.put(name, key);
+                } else {
+                    offloadedKeys.remove(name);
+                }
+            }
+        }
+        for (String name : new ArrayList<String>(attributes.keySet())) {
+            if (!stored.attributes.containsKey(name) && !isLocallyModified(name, changed, removed)) {
+                attributes.remove(name);
+                offloadedKeys.remove(name);
+            }
+        }
+        version = stored.version;
+    }
+
+    private boolean isLocallyModified(String name, Set<String> changed, Set<String> removed) {
+
+        return changed.contains(name) || removed.contains(name)
+                || changedAttributes.containsKey(name) || removedAttributes.contains(name);
+    }
+
+    public Map<String, Long> getAttributeDigests() {
+
+        return attributeDigests;
+    }
+
+    /**
+     * 整体标记为脏数据，下次保存整个重写，保存失败时用
+     */
+    public synchronized void markFullyDirty() {
+
+        dirty = true;
+    }
+
+    /**
+     * 重置为非脏数据，保存时要在序列化之前调用，序列化过程中别的请求做的修改会留到下次保存
+     */
+    public synchronized void resetDirtyTracking() {
 
         changedAttributes = new HashMap<String, Object>();
+        removedAttributes = new HashSet<String>();
         dirty = false;
     }
 
@@ -66,26 +220,33 @@ public class ClusterSession extends StandardSession {
 
         //先判断是不是手动置为脏数据
         if (manualDirtyTrackingSupportEnabled && manualDirtyTrackingAttributeKey.equals(key)) {
-            dirty = true;
+            synchronized (this) {
+                dirty = true;
+            }
             return;
         }
 
         //session里面的值如果修改,就放到脏键值里面
         Object oldValue = getAttribute(key);
-        if ((value == null && oldValue != null)
+        boolean changed = (value == null && oldValue != null)
                 || (oldValue == null && value != null)
                 || (value != null && !value.getClass().isInstance(oldValue))
-                || (value != null && !value.equals(oldValue))) {
-
-            changedAttributes.put(key, value);
-        }
+                || (value != null && !value.equals(oldValue));
 
         super.setAttribute(key, value);
 
+        //先改值再记录，并发的保存要么写到了新值，要么还能看到这条记录
+        if (changed) {
+            synchronized (this) {
+                changedAttributes.put(key, value);
+                removedAttributes.remove(key);
+            }
+        }
+
         //如果有做修改，就保存这个session
         if (isDirty()) {
 
-            manager.add(this);
+            markDirty();
         }
 
     }
@@ -95,12 +256,265 @@ public class ClusterSession extends StandardSession {
         super.removeAttribute(name);
 
         log.info("remove attribute" + name);
-        dirty = true;
+        synchronized (this) {
+            changedAttributes.remove(name);
+            removedAttributes.add(name);
+        }
         //如果有做修改，就保存这个session
-        manager.add(this);
+        markDirty();
 
     }
 
+    /**
+     * 从存储加载属性，不触发监听和脏数据标记
+     *
+     * @param name
+     * @param value
+     */
+    public void putAttributeInternal(String name, Object value) {
+
+        attributes.put(name, value);
+    }
+
+    /**
+     * 从存储加载还没反序列化的属性，第一次getAttribute时再反序列化
+     *
+     * @param name
+     * @param data       序列化后的属性值
+     * @param serializer 能读这些字节的序列化
+     */
+    public void putLazyAttributeInternal(String name, byte[] data, Serializer serializer) {
+
+        attributes.put(name, new LazyAttribute(data, serializer));
+    }
+
+    /**
+     * 从存储加载单独存放的大属性，只有key，第一次getAttribute时再去读
+     *
+     * @param name
+     * @param key    属性值存放的key
+     * @param length 属性值序列化后的长度
+     */
+    public void putOffloadedAttributeInternal(String name, String key, int length) {
+
+        attributes.put(name, new OffloadedAttribute(key, length, blobStore, null));
+        offloadedKeys.put(name, key);
+    }
+
+    /**
+     * 属性值已经单独存放，换成只有key的属性，保存时只写key；原来的对象还留着，读的时候不用再去存储读
+     *
+     * @param name
+     * @param value  单独存放的属性值
+     * @param key    存放的key
+     * @param length 序列化后的长度
+     * @return 属性已经被别的请求改过返回false
+     */
+    public boolean offloadAttribute(String name, Object value, String key, int length) {
+
+        if (!concurrentAttributes().replace(name, value, new OffloadedAttribute(key, length, blobStore, value))) {
+            return false;
+        }
+        offloadedKeys.put(name, key);
+        return true;
+    }
+
+    /**
+     * 还是单独存放、没有被读过或改过的属性
+     *
+     * @param name
+     * @return 不是返回null
+     */
+    public OffloadedAttribute getOffloadedAttribute(String name) {
+
+        Object value = attributes.get(name);
+        return value instanceof OffloadedAttribute ? (OffloadedAttribute) value : null;
+    }
+
+    /**
+     * 属性的当前值，还没反序列化或者单独存放的属性不去读，直接返回LazyAttribute
+     *
+     * @param name
+     * @return
+     */
+    public Object peekAttribute(String name) {
+
+        return attributes.get(name);
+    }
+
+    /**
+     * 单独存放的属性和存放的key
+     *
+     * @return
+     */
+    public Map<String, String> getOffloadedKeys() {
+
+        return offloadedKeys;
+    }
+
+    public void setBlobStore(BlobStore blobStore) {
+
+        this.blobStore = blobStore;
+    }
+
+    /**
+     * 还没反序列化过的属性原来的字节，保存时直接写回去
+     *
+     * @param name
+     * @param serializer 要写出的格式，和读进来时用的序列化不是同一个就不能直接用
+     * @return 已经反序列化过、格式不一样或者没有这个属性返回null
+     */
+    public byte[] getRawAttribute(String name, Serializer serializer) {
+
+        Object value = attributes.get(name);
+        if (value instanceof LazyAttribute && ((LazyAttribute) value).getData() != null
+                && ((LazyAttribute) value).getSerializer() == serializer) {
+            return ((LazyAttribute) value).getData();
+        }
+        return null;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+
+        Object value = super.getAttribute(name);
+        return value instanceof LazyAttribute ? materialize(name, (LazyAttribute) value) : value;
+    }
+
+    /**
+     * 反序列化还没用过的属性，换掉原来的字节。读不出来的属性丢掉，和加载时读不出来一样
+     *
+     * @param name
+     * @param lazy
+     * @return
+     */
+    private Object materialize(String name, LazyAttribute lazy) {
+
+        Object value;
+        try {
+            value = lazy.deserialize();
+        } catch (Exception e) {
+            log.warning("反序列化session属性失败，丢掉这个属性:" + name + " " + e);
+            concurrentAttributes().remove(name, lazy);
+            return null;
+        }
+        if (value == null) {
+            concurrentAttributes().remove(name, lazy);
+            return null;
+        }
+        //别的线程已经反序列化或者改过就用它的
+        if (!concurrentAttributes().replace(name, lazy, value)) {
+            Object current = attributes.get(name);
+            return current instanceof LazyAttribute ? materialize(name, (LazyAttribute) current) : current;
+        }
+        return value;
+    }
+
+    /**
+     * StandardSession的属性本来就是ConcurrentHashMap
+     *
+     * @return
+     */
+    private ConcurrentMap<String, Object> concurrentAttributes() {
+
+        return (ConcurrentMap<String, Object>) attributes;
+    }
+
+    /**
+     * 要通知监听的操作需要旧值，先反序列化
+     *
+     * @param name
+     */
+    private void materializeIfLazy(String name) {
+
+        Object value = attributes.get(name);
+        if (value instanceof LazyAttribute) {
+            materialize(name, (LazyAttribute) value);
+        }
+    }
+
+    @Override
+    public void setAttribute(String name, Object value, boolean notify) {
+
+        if (notify) {
+            materializeIfLazy(name);
+        }
+        super.setAttribute(name, value, notify);
+    }
+
+    @Override
+    protected void removeAttributeInternal(String name, boolean notify) {
+
+        if (notify) {
+            materializeIfLazy(name);
+        }
+        super.removeAttributeInternal(name, notify);
+    }
+
+    @Override
+    protected void doWriteObject(ObjectOutputStream stream) throws IOException {
+
+        //Java序列化要写真正的对象
+        for (String name : new ArrayList<String>(attributes.keySet())) {
+            materializeIfLazy(name);
+        }
+        super.doWriteObject(stream);
+    }
+
+    /**
+     * 从存储恢复访问时间
+     *
+     * @param lastAccessedTime
+     */
+    public void setLastAccessedTimeInternal(long lastAccessedTime) {
+
+        this.lastAccessedTime = lastAccessedTime;
+        this.thisAccessedTime = lastAccessedTime;
+    }
+
+    /**
+     * 从存储恢复访问时间
+     *
+     * @param lastAccessedTime
+     * @param thisAccessedTime
+     */
+    public void setAccessTimesInternal(long lastAccessedTime, long thisAccessedTime) {
+
+        this.lastAccessedTime = lastAccessedTime;
+        this.thisAccessedTime = thisAccessedTime;
+    }
+
+    /**
+     * 不检查有效性的isNew
+     *
+     * @return
+     */
+    public boolean isNewInternal() {
+
+        return isNew;
+    }
+
+    /**
+     * 不检查超时的有效标记，isValid()可能会触发过期
+     *
+     * @return
+     */
+    @Override
+    public boolean isValidInternal() {
+
+        return super.isValidInternal();
+    }
+
+    /**
+     * 从存储恢复principal，不标记为脏数据
+     *
+     * @param principal
+     */
+    public void setPrincipalInternal(Principal principal) {
+
+        this.principal = principal;
+    }
+
     @Override
     public void setId(String id) {
 
@@ -110,9 +524,24 @@ public class ClusterSession extends StandardSession {
     public void setPrincipal(Principal principal) {
 
         log.info("setPrincipal");
-        //标记下已经修改，已经是脏数据
-        dirty = true;
         super.setPrincipal(principal);
+        //标记下已经修改，已经是脏数据
+        synchronized (this) {
+            dirty = true;
+        }
+        markDirty();
+    }
+
+    /**
+     * 通知manager保存，在请求里面会等到请求结束才真正写存储
+     */
+    protected void markDirty() {
+
+        if (manager instanceof ClusterSessionManager) {
+            ((ClusterSessionManager) manager).markDirty(this);
+        } else if (manager != null) {
+            manager.add(this);
+        }
     }
 
     @Override
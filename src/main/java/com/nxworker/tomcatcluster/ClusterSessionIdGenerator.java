@@ -4,11 +4,14 @@ import org.apache.catalina.SessionIdGenerator;
 
 /**
  * 自定义sessionId生成器
+ * <p>
+ * sessionIdLength是随机字节数，默认16个字节即22位字符；设置了jvmRoute的话和tomcat一样在后面加上".jvmRoute"，
+ * 负载均衡可以按它粘到同一个节点
  */
 public class ClusterSessionIdGenerator implements SessionIdGenerator {
 
     private String jvmRoute;
-    private int    sessionIdLength;
+    private int    sessionIdLength = 16;
 
     @Override
     public String getJvmRoute() {
@@ -37,13 +40,17 @@ public class ClusterSessionIdGenerator implements SessionIdGenerator {
     @Override
     public String generateSessionId() {
 
-        return IdGenerator.getUUIDString();
+        return generateSessionId(jvmRoute);
     }
 
     @Override
     public String generateSessionId(String route) {
 
-        return IdGenerator.getUUIDString();
+        String id = IdGenerator.randomString(sessionIdLength);
+        if (route != null && route.length() > 0) {
+            return id + '.' + route;
+        }
+        return id;
     }
 
 }
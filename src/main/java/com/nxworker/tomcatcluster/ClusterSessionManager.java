@@ -1,6 +1,7 @@
 package com.nxworker.tomcatcluster;
 
 import org.apache.catalina.*;
+import org.apache.catalina.session.TooManyActiveSessionsException;
 import org.apache.catalina.util.LifecycleMBeanBase;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
@@ -10,6 +11,14 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * 自定义基于redis存储的clusterSessionManager
@@ -25,18 +34,45 @@ public class ClusterSessionManager extends LifecycleMBeanBase implements Manager
     //存储
     private SessionRepository repository;
 
+    //异步存储，请求开始时提前读session用
+    private AsyncSessionRepository asyncRepository;
+
+    //开启session索引时的redis存储，计数和列出session用，没开启为null
+    private RedisRepository indexedRepository;
+
+    //过期session清理线程，没开启时为null
+    private SessionReaper reaper;
+
+    //进程内的堆外存储，过期、计数和列出session用，用redis时为null
+    private OffHeapSessionRepository offHeapRepository;
+
+    //索引里的session数每次都问redis太频繁，缓存一秒
+    private volatile int  indexedCount;
+    private volatile long indexedCountTime;
+
     //容器
     private Context context;
 
     //sessionId生成器
     private SessionIdGenerator sessionIdGenerator;
 
-    //序列化用的类
+    //统计
+    private final SessionStatistics statistics = new SessionStatistics();
+
+    //最多允许多少个活动session，-1不限制；要知道准确的活动session数，只在属主模式、session索引或堆外存储下生效
+    private int maxActiveSessions = -1;
+
+    //默认sessionId生成器的随机字节数
+    private int sessionIdLength = 16;
+
+    //序列化用的类，可以换成com.nxworker.tomcatcluster.CompactSerializer
     private String serializationStrategyClass = "com.nxworker.tomcatcluster.ClusterSerializer";
 
+    //当前请求的session缓存，由请求阀门在请求开始时创建、结束时清掉
+    private ThreadLocal<RequestSessionCache> requestCache = new ThreadLocal<RequestSessionCache>();
 
-    private ThreadLocal<Session> currentSession   = new ThreadLocal<Session>();
-    private ThreadLocal<String>  currentSessionId = new ThreadLocal<String>();
+    //请求阀门
+    private ClusterSessionValve valve;
 
     //默认存储配置
     private String host     = "localhost";
@@ -45,6 +81,86 @@ public class ClusterSessionManager extends LifecycleMBeanBase implements Manager
     private String password = null;
     private int    timeout  = Protocol.DEFAULT_TIMEOUT;
 
+    //多个redis分片，逗号分开的host:port，配置了就不用host和port；session按id一致性哈希分到各个分片
+    private String hosts             = null;
+    private int    shardVirtualNodes = RedisRepository.DEFAULT_VIRTUAL_NODES;
+
+    //从节点，按分片顺序逗号分开，同一个分片的多个从节点用|分开；配置了就从从节点读session
+    private String replicaHosts     = null;
+    private long   replicaLagMillis = 1000;
+
+    //存储模式，string为整个session序列化成一个值，hash为每个属性一个字段只写修改的部分
+    private String storageMode = "string";
+
+    //压缩算法none、deflate或lzf，超过阈值字节数才压缩
+    private String compressionCodec     = CompressingSerializer.CODEC_NONE;
+    private int    compressionThreshold = 1024;
+
+    //序列化缓冲每个线程复用，超过这个大小的用完就不留着
+    private int bufferMaxRetainedSize = 256 * 1024;
+
+    //请求结束时的保存策略
+    private String savePolicy = SavePolicy.DIRTY_ONLY.name();
+
+    //只读请求刷新过期时间的间隔，距上次刷新超过maxInactiveInterval的这个比例才刷新
+    private double touchFraction = 0.2;
+
+    //本地近端缓存配置
+    private boolean nearCacheEnabled    = false;
+    private int     nearCacheMaxEntries = 10000;
+    private long    nearCacheMaxBytes   = 64L * 1024 * 1024;
+    private long    nearCacheTtlMillis  = 60 * 1000;
+    private String  nearCacheChannel    = "tomcatcluster:invalidate";
+
+    //后台批量写入配置
+    private boolean writeBatchingEnabled      = false;
+    private int     writeBatchMaxSize         = 100;
+    private long    writeBatchMaxLingerMillis = 2;
+
+    //粘性会话属主模式，本节点的session留在内存里，异步备份到redis
+    private boolean stickyOwnerEnabled = false;
+
+    //string存储模式下按版本号条件写入，并发请求的修改按属性合并，不再后写的覆盖先写的；hash模式本来就只写修改的属性
+    private boolean versionedWritesEnabled = false;
+
+    //属性用到时才反序列化，没用到的保存时写回原来的字节；string模式要用CompactSerializer，所有节点都升级后再开
+    private boolean lazyAttributesEnabled = false;
+
+    //序列化后不小于这个字节数的属性单独存放，session里只留引用，用到时才读；0表示不开启。
+    //只支持string模式和CompactSerializer，所有节点都升级后再开
+    private int offloadThreshold = 0;
+
+    //redis key前缀，同一个redis里的几个应用分开，比如应用名加冒号；默认没有前缀，和以前的数据兼容
+    private String keyPrefix = "";
+
+    //维护按过期时刻排序的session索引，getActiveSessions、findSessions和manager应用才能看到所有节点的session
+    private boolean sessionIndexEnabled = false;
+
+    //findSessions最多列出多少个session，每个都要到redis读一次
+    private int findSessionsLimit = 1000;
+
+    //存储实现类，默认redis；可以换成com.nxworker.tomcatcluster.OffHeapSessionRepository，单节点和测试不用redis。
+    //RedisRepository的子类用redis的配置创建，其他实现要有一个Serializer参数或者没有参数的构造方法
+    private String repositoryClass = RedisRepository.class.getName();
+
+    //堆外存储最多用的内存和块大小
+    private long offHeapMaxBytes  = OffHeapSessionRepository.DEFAULT_MAX_BYTES;
+    private int  offHeapBlockSize = OffHeapSessionRepository.DEFAULT_BLOCK_SIZE;
+
+    //session过期时触发HttpSessionListener和HttpSessionBindingListener，会同时开启session索引。
+    //过期的session在redis里多留expiryGraceSeconds秒等着清理线程处理，所有节点都升级后再开
+    private boolean expiryReaperEnabled      = false;
+    private int     expiryGraceSeconds       = 300;
+    private long    expiryReapIntervalMillis = 1000;
+    private int     expiryReapBatchSize      = 100;
+
+    //同一个session同时只到存储里读一次，并发的请求共用读到的数据，各自反序列化出自己的session对象
+    private boolean coalesceLoadsEnabled = true;
+
+    //请求开始时就在后台读session，和请求的其他处理并行
+    private boolean prefetchEnabled = false;
+    private int     prefetchThreads = 8;
+
     @Override
     public Container getContainer() {
 
@@ -126,89 +242,208 @@ public class ClusterSessionManager extends LifecycleMBeanBase implements Manager
         this.sessionIdGenerator = sessionIdGenerator;
     }
 
+    /**
+     * 所在Engine配置的jvmRoute，没有配置返回null
+     *
+     * @return
+     */
+    public String getJvmRoute() {
+
+        Container container = getContext();
+        while (container != null && !(container instanceof Engine)) {
+            container = container.getParent();
+        }
+        return container == null ? null : ((Engine) container).getJvmRoute();
+    }
+
     @Override
     public int getSessionIdLength() {
 
-        return 0;
+        return sessionIdLength;
     }
 
     @Override
     public void setSessionIdLength(int idLength) {
 
+        this.sessionIdLength = idLength;
     }
 
     @Override
     public long getSessionCounter() {
 
-        return 0;
+        return statistics.getCreated();
     }
 
     @Override
     public void setSessionCounter(long sessionCounter) {
 
+        statistics.setCreated(sessionCounter);
     }
 
     @Override
     public int getMaxActive() {
 
-        return 0;
+        return (int) statistics.getMaxActive();
     }
 
     @Override
     public void setMaxActive(int maxActive) {
 
+        statistics.setMaxActive(maxActive);
     }
 
+    /**
+     * 属主模式下是本节点持有的session数；开启索引时是所有节点没过期的session数；堆外存储是存着的session数。
+     * 其他模式session在redis里由redis按过期时间删掉，本节点不知道有多少，返回0
+     *
+     * @return
+     */
     @Override
     public int getActiveSessions() {
 
+        if (repository instanceof StickyOwnerRepository) {
+            return ((StickyOwnerRepository) repository).getOwnedCount();
+        }
+        if (offHeapRepository != null) {
+            return offHeapRepository.size();
+        }
+        if (indexedRepository != null) {
+            long now = System.currentTimeMillis();
+            if (now - indexedCountTime < 1000) {
+                return indexedCount;
+            }
+            try {
+                indexedCount = (int) Math.min(Integer.MAX_VALUE, indexedRepository.countSessions());
+                indexedCountTime = now;
+            } catch (Exception e) {
+                log.warn("session索引计数失败，用上次的计数: " + e.getMessage());
+            }
+            return indexedCount;
+        }
         return 0;
     }
 
+    /**
+     * 有没有准确的活动session数，没有的话maxActiveSessions不生效
+     *
+     * @return
+     */
+    private boolean isActiveSessionCountAvailable() {
+
+        return repository instanceof StickyOwnerRepository || offHeapRepository != null || indexedRepository != null;
+    }
+
     @Override
     public long getExpiredSessions() {
 
-        return 0;
+        return statistics.getExpired();
     }
 
     @Override
     public void setExpiredSessions(long expiredSessions) {
 
+        statistics.setExpired(expiredSessions);
     }
 
     @Override
     public int getRejectedSessions() {
 
-        return 0;
+        return (int) statistics.getRejected();
     }
 
     @Override
     public int getSessionMaxAliveTime() {
 
-        return 0;
+        return (int) statistics.getMaxAlive();
     }
 
     @Override
     public void setSessionMaxAliveTime(int sessionMaxAliveTime) {
 
+        statistics.setMaxAlive(sessionMaxAliveTime);
     }
 
     @Override
     public int getSessionAverageAliveTime() {
 
-        return 0;
+        return (int) statistics.getAverageAlive();
     }
 
+    /**
+     * @return 最近一分钟创建的session数
+     */
     @Override
     public int getSessionCreateRate() {
 
-        return 0;
+        return (int) statistics.getCreateRate();
     }
 
+    /**
+     * @return 最近一分钟过期的session数
+     */
     @Override
     public int getSessionExpireRate() {
 
-        return 0;
+        return (int) statistics.getExpireRate();
+    }
+
+    public int getMaxActiveSessions() {
+
+        return maxActiveSessions;
+    }
+
+    public void setMaxActiveSessions(int maxActiveSessions) {
+
+        this.maxActiveSessions = maxActiveSessions;
+    }
+
+    /**
+     * 每种存储操作的次数、失败次数和p50/p99/p999耗时
+     *
+     * @return
+     */
+    public String[] getRepositoryStatistics() {
+
+        return statistics.getRepositorySummary();
+    }
+
+    /**
+     * 序列化后session大小的分布
+     *
+     * @return
+     */
+    public String getSerializedSizeStatistics() {
+
+        return statistics.getSizeSummary();
+    }
+
+    public long getFindLatencyP99Micros() {
+
+        return statistics.getLatency(SessionStatistics.OP_FIND).percentile(99);
+    }
+
+    public long getSaveLatencyP99Micros() {
+
+        return statistics.getLatency(SessionStatistics.OP_SAVE).percentile(99);
+    }
+
+    public long getRepositoryErrorCount() {
+
+        return statistics.getErrors(SessionStatistics.OP_SAVE) + statistics.getErrors(SessionStatistics.OP_FIND)
+                + statistics.getErrors(SessionStatistics.OP_REMOVE) + statistics.getErrors(SessionStatistics.OP_EXPIRE);
+    }
+
+    public SessionStatistics getStatistics() {
+
+        return statistics;
+    }
+
+    /**
+     * 清零所有统计
+     */
+    public void resetStatistics() {
+
+        statistics.reset();
     }
 
 
@@ -220,9 +455,161 @@ public class ClusterSessionManager extends LifecycleMBeanBase implements Manager
     @Override
     public void add(Session session) {
 
+        try {
+            saveSession(session);
+        } catch (SessionSaveException e) {
+            //不在请求里面时没有人能处理，session已经整个标记为脏数据，下次保存时重写
+            log.warn("保存session失败:" + session.getIdInternal() + ", " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param session
+     * @return 是否真的写了存储，写入失败抛SessionSaveException
+     */
+    private boolean saveSession(Session session) {
+
         log.info("保存session中");
-        repository.save(session);
-        repository.expire(session, session.getMaxInactiveInterval());
+        return repository.save(session);
+    }
+
+    /**
+     * 开始一个请求，之后的findSession都走请求缓存，修改过的session等请求结束再保存
+     *
+     * @return 当前线程已经在请求里面就返回false
+     */
+    public boolean beginRequest() {
+
+        if (requestCache.get() != null) {
+            return false;
+        }
+        requestCache.set(new RequestSessionCache());
+        return true;
+    }
+
+    /**
+     * 在后台开始读取请求带来的session，之后的findSession直接等这次读取的结果
+     *
+     * @param id 请求带来的sessionId
+     */
+    public void prefetch(String id) {
+
+        RequestSessionCache cache = requestCache.get();
+        if (asyncRepository == null || id == null || cache == null || cache.contains(id)) {
+            return;
+        }
+        //属主模式下本节点的session就在内存里，不用提前读
+        if (repository instanceof StickyOwnerRepository && ((StickyOwnerRepository) repository).isLocal(id)) {
+            return;
+        }
+        cache.putPrefetch(id, asyncRepository.findAsync(id, this));
+    }
+
+    /**
+     * 等提前读取的结果
+     *
+     * @param future
+     * @return
+     * @throws IOException
+     */
+    private Session join(Future<Session> future) throws IOException {
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading session");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * 标记session有修改。在请求里面就先记下来，等请求结束再保存；不在请求里面就马上保存
+     *
+     * @param session
+     */
+    public void markDirty(Session session) {
+
+        RequestSessionCache cache = requestCache.get();
+        if (cache == null) {
+            add(session);
+            return;
+        }
+        cache.markDirty(session);
+    }
+
+    /**
+     * 请求结束，每个要保存的session只保存一次，然后清掉请求缓存。
+     * DIRTY_ONLY只保存修改过的，ALWAYS和CONTENT_HASH把请求里访问过的都交给存储，由存储决定怎么写
+     */
+    public void endRequest() {
+
+        RequestSessionCache cache = requestCache.get();
+        requestCache.remove();
+        if (cache == null) {
+            return;
+        }
+        cache.cancelPrefetches();
+
+        Set<Session> sessions = new LinkedHashSet<Session>(cache.getDirtySessions());
+        if (SavePolicy.valueOf(savePolicy) != SavePolicy.DIRTY_ONLY) {
+            sessions.addAll(cache.getSessions());
+        }
+        for (Session session : sessions) {
+            //请求里面已经失效的session不用再写回去
+            if (session.getIdInternal() == null || !session.isValid()) {
+                continue;
+            }
+            try {
+                //跳过写入的才刷新过期时间，写入失败的不能当成已经保存过
+                if (!saveSession(session)) {
+                    touch(session);
+                }
+            } catch (Exception e) {
+                log.error("保存session失败:" + session.getIdInternal(), e);
+            }
+        }
+
+        //只读过没保存的session，按间隔刷新过期时间
+        for (Session session : cache.getSessions()) {
+            if (sessions.contains(session) || session.getIdInternal() == null || !session.isValid()) {
+                continue;
+            }
+            try {
+                touch(session);
+            } catch (Exception e) {
+                log.error("刷新session过期时间失败:" + session.getIdInternal(), e);
+            }
+        }
+    }
+
+    /**
+     * 刷新存储里的过期时间，距上次刷新没超过maxInactiveInterval * touchFraction就不刷新
+     *
+     * @param session
+     */
+    private void touch(Session session) {
+
+        ClusterSession clusterSession = (ClusterSession) session;
+        int            maxInactive    = clusterSession.getMaxInactiveInterval();
+        if (maxInactive <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - clusterSession.getLastTouchedTime() < maxInactive * 1000L * touchFraction) {
+            return;
+        }
+        repository.expire(session, maxInactive);
+        clusterSession.setLastTouchedTime(now);
     }
 
     @Override
@@ -253,7 +640,16 @@ public class ClusterSessionManager extends LifecycleMBeanBase implements Manager
                                  boolean notifySessionListeners, boolean notifyContainerListeners) {
 
         String oldId = session.getIdInternal();
+        //setId会删掉旧id的数据再用新id保存，新id在存储里还没有，要整个写进去
+        if (session instanceof ClusterSession) {
+            ((ClusterSession) session).setPersisted(false);
+        }
         session.setId(newId, false);
+        RequestSessionCache cache = requestCache.get();
+        if (cache != null) {
+            cache.remove(oldId);
+            cache.put(newId, session);
+        }
         session.tellChangedSessionId(newId, oldId,
                 notifySessionListeners, notifyContainerListeners);
     }
@@ -278,6 +674,11 @@ public class ClusterSessionManager extends LifecycleMBeanBase implements Manager
     @Override
     public Session createSession(String sessionId) {
 
+        if (maxActiveSessions >= 0 && isActiveSessionCountAvailable() && getActiveSessions() >= maxActiveSessions) {
+            statistics.sessionRejected();
+            throw new TooManyActiveSessionsException("createSession: Too many active sessions", maxActiveSessions);
+        }
+
         Session session = createEmptySession();
         session.setNew(true);
         session.setValid(true);
@@ -289,10 +690,14 @@ public class ClusterSessionManager extends LifecycleMBeanBase implements Manager
         }
         session.setId(id);
         log.info("创建新session,sessionId为" + id);
+        statistics.sessionCreated();
+        statistics.updateMaxActive(getActiveSessions());
 
-        add(session);
-        currentSession.set(session);
-        currentSessionId.set(id);
+        RequestSessionCache cache = requestCache.get();
+        if (cache != null) {
+            cache.put(id, session);
+        }
+        markDirty(session);
         return session;
     }
 
@@ -311,23 +716,21 @@ public class ClusterSessionManager extends LifecycleMBeanBase implements Manager
             return (null);
         }
 
-        //先到当前线程找
-        Session session;
-        if (id.equals(currentSessionId.get())) {
-
-            session = currentSession.get();
-
-            if (session != null) {
-
-                return session;
-            }
+        //先到当前请求的缓存里面找，存储里面没有的也记下来，不用再查一次
+        RequestSessionCache cache = requestCache.get();
+        if (cache != null && cache.contains(id)) {
+            return cache.get(id);
         }
 
-        //找不到到存储里面找
-        session = repository.find(id, this);
+        //请求开始时已经在读了就等结果，否则到存储里面找
+        Future<Session> prefetched = cache != null ? cache.takePrefetch(id) : null;
+        Session         session    = prefetched != null ? join(prefetched) : repository.find(id, this);
         if (session == null) {
 
-            System.out.println("没找到session");
+            log.debug("没找到session:" + id);
+        }
+        if (cache != null) {
+            cache.put(id, session);
         }
         return session;
     }
@@ -335,9 +738,58 @@ public class ClusterSessionManager extends LifecycleMBeanBase implements Manager
     @Override
     public Session[] findSessions() {
 
+        //属主模式下能列出本节点持有的session，开启索引时按过期时刻列出所有节点的，其他模式session不在本机
+        if (repository instanceof StickyOwnerRepository) {
+            List<Session> owned = ((StickyOwnerRepository) repository).getOwnedSessions();
+            return owned.toArray(new Session[owned.size()]);
+        }
+        if (indexedRepository != null) {
+            return findSessions(0, getFindSessionsLimit());
+        }
+        if (offHeapRepository != null) {
+            List<Session> sessions = new ArrayList<Session>();
+            try {
+                for (String id : offHeapRepository.listSessionIds(getFindSessionsLimit())) {
+                    Session session = offHeapRepository.peek(id, this);
+                    if (session != null) {
+                        sessions.add(session);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("列出session失败", e);
+            }
+            return sessions.toArray(new Session[sessions.size()]);
+        }
         return new Session[0];
     }
 
+    /**
+     * 按过期时刻从近到远分页列出session，要开启session索引。读session不刷新过期时间
+     *
+     * @param offset
+     * @param count
+     * @return
+     */
+    public Session[] findSessions(int offset, int count) {
+
+        if (indexedRepository == null) {
+            return new Session[0];
+        }
+        List<Session> sessions = new ArrayList<Session>();
+        try {
+            for (String id : indexedRepository.listSessionIds(offset, count)) {
+                //列出之后读之前可能已经过期
+                Session session = indexedRepository.peek(id, this);
+                if (session != null) {
+                    sessions.add(session);
+                }
+            }
+        } catch (Exception e) {
+            log.error("列出session失败", e);
+        }
+        return sessions.toArray(new Session[sessions.size()]);
+    }
+
     @Override
     public void load() throws ClassNotFoundException, IOException {
 
@@ -352,6 +804,11 @@ public class ClusterSessionManager extends LifecycleMBeanBase implements Manager
     public void remove(Session session) {
 
         if (session != null && session.getIdInternal() != null) {
+            RequestSessionCache cache = requestCache.get();
+            if (cache != null) {
+                //记下已经删掉了，请求里面再找就不用查存储
+                cache.put(session.getIdInternal(), null);
+            }
             repository.remove(session);
         }
     }
@@ -365,6 +822,10 @@ public class ClusterSessionManager extends LifecycleMBeanBase implements Manager
     @Override
     public void remove(Session session, boolean update) {
 
+        //和tomcat一样，update为true是session过期或者被invalidate
+        if (update && session != null) {
+            statistics.sessionExpired(System.currentTimeMillis() - session.getCreationTimeInternal());
+        }
         remove(session);
     }
 
@@ -382,6 +843,20 @@ public class ClusterSessionManager extends LifecycleMBeanBase implements Manager
     @Override
     public void backgroundProcess() {
 
+        if (repository instanceof StickyOwnerRepository) {
+            ((StickyOwnerRepository) repository).processExpires();
+        }
+        if (offHeapRepository != null) {
+            offHeapRepository.processExpires(this);
+        }
+        if (indexedRepository != null && reaper == null) {
+            //redis自己删掉过期的session，索引里的记录要自己清；开了清理线程的由它取走
+            try {
+                indexedRepository.pruneIndex();
+            } catch (Exception e) {
+                log.warn("清理session索引失败: " + e.getMessage());
+            }
+        }
     }
 
     /**
@@ -448,8 +923,13 @@ public class ClusterSessionManager extends LifecycleMBeanBase implements Manager
         SessionIdGenerator sessionIdGenerator = getSessionIdGenerator();
         if (sessionIdGenerator == null) {
             sessionIdGenerator = new ClusterSessionIdGenerator();
+            sessionIdGenerator.setSessionIdLength(getSessionIdLength());
             setSessionIdGenerator(sessionIdGenerator);
         }
+        //Engine上配置了jvmRoute就加到sessionId后面
+        if (sessionIdGenerator.getJvmRoute() == null) {
+            sessionIdGenerator.setJvmRoute(getJvmRoute());
+        }
 
         if (sessionIdGenerator instanceof Lifecycle) {
             ((Lifecycle) sessionIdGenerator).start();
@@ -469,17 +949,201 @@ public class ClusterSessionManager extends LifecycleMBeanBase implements Manager
             log.error(e);
         }
 
+        if (reaper != null) {
+            reaper.start();
+        }
+
+        if (maxActiveSessions >= 0 && !isActiveSessionCountAvailable()) {
+            log.warn("没有开启属主模式、session索引或堆外存储，不知道活动session数，maxActiveSessions不生效");
+        }
+
+        if (isPrefetchEnabled() && repository != null) {
+            asyncRepository = new ExecutorSessionRepository(repository, getPrefetchThreads());
+        }
+
+        //注册请求阀门，请求结束时统一保存session
+        valve = new ClusterSessionValve(this);
+        getContext().getPipeline().addValve(valve);
+
         setDistributable(true);
     }
 
     /**
-     * 初始化redis存储
+     * 初始化存储
      */
     private void initRepository() throws Exception {
 
+        SerializationBuffer.setMaxRetainedSize(getBufferMaxRetainedSize());
         Serializer serializer = (Serializer) Class.forName(serializationStrategyClass).newInstance();
+        boolean compact = serializer instanceof CompactSerializer;
+        if (compact) {
+            ((CompactSerializer) serializer).setLazyAttributes(isLazyAttributesEnabled());
+        }
+        //不压缩时也包一层，以前压缩过的数据还能读
+        serializer = new CompressingSerializer(serializer, getCompressionCodec(), getCompressionThreshold());
         serializer.setClassLoader(getContext().getLoader().getClassLoader());
-        this.repository = new RedisRepository(serializer, getHost(), getPort(), getTimeout(), getPassword(), getDatabase());
+        SavePolicy policy         = SavePolicy.valueOf(getSavePolicy());
+        Class<?>   repositoryType = Class.forName(getRepositoryClass());
+        if (!RedisRepository.class.isAssignableFrom(repositoryType)) {
+            initLocalRepository(repositoryType, serializer, policy);
+            return;
+        }
+
+        RedisRepository redisRepository;
+        List<String>    endpoints = getEndpoints();
+        if (repositoryType == RedisRepository.class && "hash".equalsIgnoreCase(getStorageMode())) {
+            repositoryType = RedisHashRepository.class;
+        }
+        redisRepository = (RedisRepository) repositoryType
+                .getConstructor(Serializer.class, List.class, int.class, int.class, String.class, int.class)
+                .newInstance(serializer, endpoints, getShardVirtualNodes(), getTimeout(), getPassword(), getDatabase());
+        if (redisRepository instanceof RedisHashRepository) {
+            ((RedisHashRepository) redisRepository).setLazyAttributes(isLazyAttributesEnabled());
+            if (isWriteBatchingEnabled()) {
+                log.warn("hash存储模式只写修改的字段，不支持后台批量写入");
+            }
+            if (getOffloadThreshold() > 0) {
+                log.warn("hash存储模式不支持大属性单独存放");
+            }
+        } else {
+            if (isWriteBatchingEnabled()) {
+                redisRepository.enableWriteBatching(getWriteBatchMaxSize(), getWriteBatchMaxLingerMillis());
+            }
+            if (isVersionedWritesEnabled()) {
+                redisRepository.enableVersionedWrites();
+            }
+            if (getOffloadThreshold() > 0 && compact) {
+                redisRepository.enableOffloading(getOffloadThreshold());
+            } else if (getOffloadThreshold() > 0) {
+                log.warn("大属性单独存放要用CompactSerializer，" + serializationStrategyClass + "会把属性整个写进session");
+            }
+        }
+        if (replicaHosts != null && replicaHosts.trim().length() > 0) {
+            redisRepository.enableReplicaReads(Arrays.asList(replicaHosts.split(",")), getReplicaLagMillis());
+        }
+        redisRepository.setKeyPrefix(getKeyPrefix());
+        if (isSessionIndexEnabled()) {
+            redisRepository.enableSessionIndex();
+            indexedRepository = redisRepository;
+        }
+        if (isExpiryReaperEnabled() && isStickyOwnerEnabled()) {
+            log.warn("属主模式下本节点的session在内存里过期，已经会触发监听，不再使用过期清理线程");
+        } else if (isExpiryReaperEnabled()) {
+            redisRepository.enableExpiryReaping(getExpiryGraceSeconds());
+            indexedRepository = redisRepository;
+            reaper = new SessionReaper(redisRepository, this, getExpiryReapBatchSize(), getExpiryReapIntervalMillis());
+        }
+        redisRepository.setSavePolicy(policy);
+        redisRepository.setTouchFraction(getTouchFraction());
+        redisRepository.setStatistics(statistics);
+        InstrumentedRepository instrumented = new InstrumentedRepository(redisRepository, statistics);
+        this.repository = instrumented;
+        if (isCoalesceLoadsEnabled()) {
+            this.repository = new SingleFlightRepository(instrumented);
+        }
+
+        String jvmRoute = getJvmRoute();
+        if (isStickyOwnerEnabled() && (jvmRoute == null || jvmRoute.length() == 0)) {
+            log.warn("Engine没有配置jvmRoute，不能使用属主模式");
+        } else if (isStickyOwnerEnabled()) {
+            //备份到redis改成异步写
+            if (!isWriteBatchingEnabled() && !(redisRepository instanceof RedisHashRepository)) {
+                redisRepository.enableWriteBatching(getWriteBatchMaxSize(), getWriteBatchMaxLingerMillis());
+            }
+            if (isNearCacheEnabled()) {
+                log.warn("属主模式下session本来就在内存里，不再使用近端缓存");
+            }
+            this.repository = new StickyOwnerRepository(this.repository, jvmRoute);
+            return;
+        }
+
+        if (isNearCacheEnabled()) {
+            //失效消息只要所有节点连同一个redis，用第一个分片
+            this.repository = new NearCacheRepository(this.repository,
+                    RedisRepository.hostOf(endpoints.get(0)), RedisRepository.portOf(endpoints.get(0)), getTimeout(), getPassword(),
+                    getNearCacheMaxEntries(), getNearCacheMaxBytes(), getNearCacheTtlMillis(), getNearCacheChannel());
+        }
+    }
+
+    /**
+     * 初始化不用redis的存储，redis才有的功能都不开
+     *
+     * @param repositoryType
+     * @param serializer
+     * @param policy
+     * @throws Exception
+     */
+    private void initLocalRepository(Class<?> repositoryType, Serializer serializer, SavePolicy policy) throws Exception {
+
+        SessionRepository local;
+        if (repositoryType == OffHeapSessionRepository.class) {
+            offHeapRepository = new OffHeapSessionRepository(serializer, getOffHeapMaxBytes(), getOffHeapBlockSize());
+            offHeapRepository.setSavePolicy(policy);
+            local = offHeapRepository;
+        } else {
+            try {
+                local = (SessionRepository) repositoryType.getConstructor(Serializer.class).newInstance(serializer);
+            } catch (NoSuchMethodException e) {
+                local = (SessionRepository) repositoryType.newInstance();
+            }
+        }
+        if (isStickyOwnerEnabled() || isNearCacheEnabled() || isSessionIndexEnabled() || isExpiryReaperEnabled()
+                || isWriteBatchingEnabled() || isVersionedWritesEnabled() || getOffloadThreshold() > 0) {
+            log.warn(repositoryClass + "不是redis存储，属主模式、近端缓存、session索引、过期清理线程、批量写入、条件写入和大属性单独存放都不使用");
+        }
+        InstrumentedRepository instrumented = new InstrumentedRepository(local, statistics);
+        this.repository = instrumented;
+        if (isCoalesceLoadsEnabled() && local instanceof SnapshotRepository) {
+            //进程内的存储没有网络往返，不能分两步读的不合并
+            this.repository = new SingleFlightRepository(instrumented);
+        }
+    }
+
+    /**
+     * redis地址列表，没有配置hosts就是host:port一个
+     *
+     * @return
+     */
+    private List<String> getEndpoints() {
+
+        List<String> endpoints = new ArrayList<String>();
+        if (hosts != null) {
+            for (String endpoint : hosts.split(",")) {
+                if (endpoint.trim().length() > 0) {
+                    endpoints.add(endpoint.trim());
+                }
+            }
+        }
+        if (endpoints.isEmpty()) {
+            endpoints.add(getHost() + ":" + getPort());
+        }
+        return endpoints;
+    }
+
+    /**
+     * 属主模式下，请求带来的是其他节点的sessionId时(故障转移)，把sessionId后缀改成本节点，由本节点接管
+     *
+     * @param requestedId 请求带来的sessionId
+     * @return 接管后的新sessionId，不用接管返回null
+     * @throws IOException
+     */
+    public String takeOver(String requestedId) throws IOException {
+
+        if (requestedId == null || !(repository instanceof StickyOwnerRepository)) {
+            return null;
+        }
+        StickyOwnerRepository owner = (StickyOwnerRepository) repository;
+        if (owner.isLocal(requestedId)) {
+            return null;
+        }
+        Session session = findSession(requestedId);
+        if (session == null || !session.isValid()) {
+            return null;
+        }
+        String newId = owner.localId(requestedId);
+        log.info("Taking over session " + requestedId + " as " + newId);
+        changeSessionId(session, newId);
+        return newId;
     }
 
 
@@ -492,6 +1156,20 @@ public class ClusterSessionManager extends LifecycleMBeanBase implements Manager
     protected void stopInternal() throws LifecycleException {
 
         setState(LifecycleState.STOPPING);
+        if (valve != null) {
+            getContext().getPipeline().removeValve(valve);
+            valve = null;
+        }
+        if (asyncRepository != null) {
+            asyncRepository.close();
+            asyncRepository = null;
+        }
+        if (reaper != null) {
+            reaper.stop();
+            reaper = null;
+        }
+        indexedRepository = null;
+        offHeapRepository = null;
         repository.close();
         if (sessionIdGenerator instanceof Lifecycle) {
             ((Lifecycle) sessionIdGenerator).stop();
@@ -518,6 +1196,46 @@ public class ClusterSessionManager extends LifecycleMBeanBase implements Manager
         this.port = port;
     }
 
+    public String getHosts() {
+
+        return hosts;
+    }
+
+    public void setHosts(String hosts) {
+
+        this.hosts = hosts;
+    }
+
+    public int getShardVirtualNodes() {
+
+        return shardVirtualNodes;
+    }
+
+    public void setShardVirtualNodes(int shardVirtualNodes) {
+
+        this.shardVirtualNodes = shardVirtualNodes;
+    }
+
+    public String getReplicaHosts() {
+
+        return replicaHosts;
+    }
+
+    public void setReplicaHosts(String replicaHosts) {
+
+        this.replicaHosts = replicaHosts;
+    }
+
+    public long getReplicaLagMillis() {
+
+        return replicaLagMillis;
+    }
+
+    public void setReplicaLagMillis(long replicaLagMillis) {
+
+        this.replicaLagMillis = replicaLagMillis;
+    }
+
     public String getPassword() {
 
         return password;
@@ -547,4 +1265,330 @@ public class ClusterSessionManager extends LifecycleMBeanBase implements Manager
 
         this.database = database;
     }
+
+    public String getSerializationStrategyClass() {
+
+        return serializationStrategyClass;
+    }
+
+    public void setSerializationStrategyClass(String serializationStrategyClass) {
+
+        this.serializationStrategyClass = serializationStrategyClass;
+    }
+
+    public String getCompressionCodec() {
+
+        return compressionCodec;
+    }
+
+    /**
+     * @param compressionCodec none、deflate 或 lzf
+     */
+    public void setCompressionCodec(String compressionCodec) {
+
+        this.compressionCodec = compressionCodec.trim().toLowerCase();
+    }
+
+    public int getCompressionThreshold() {
+
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public int getBufferMaxRetainedSize() {
+
+        return bufferMaxRetainedSize;
+    }
+
+    public void setBufferMaxRetainedSize(int bufferMaxRetainedSize) {
+
+        this.bufferMaxRetainedSize = bufferMaxRetainedSize;
+    }
+
+    public String getSavePolicy() {
+
+        return savePolicy;
+    }
+
+    /**
+     * @param savePolicy ALWAYS, DIRTY_ONLY 或 CONTENT_HASH
+     */
+    public void setSavePolicy(String savePolicy) {
+
+        this.savePolicy = SavePolicy.valueOf(savePolicy.trim().toUpperCase()).name();
+    }
+
+    public double getTouchFraction() {
+
+        return touchFraction;
+    }
+
+    public void setTouchFraction(double touchFraction) {
+
+        this.touchFraction = touchFraction;
+    }
+
+    public String getStorageMode() {
+
+        return storageMode;
+    }
+
+    public void setStorageMode(String storageMode) {
+
+        this.storageMode = storageMode;
+    }
+
+    public boolean isWriteBatchingEnabled() {
+
+        return writeBatchingEnabled;
+    }
+
+    public void setWriteBatchingEnabled(boolean writeBatchingEnabled) {
+
+        this.writeBatchingEnabled = writeBatchingEnabled;
+    }
+
+    public int getWriteBatchMaxSize() {
+
+        return writeBatchMaxSize;
+    }
+
+    public void setWriteBatchMaxSize(int writeBatchMaxSize) {
+
+        this.writeBatchMaxSize = writeBatchMaxSize;
+    }
+
+    public long getWriteBatchMaxLingerMillis() {
+
+        return writeBatchMaxLingerMillis;
+    }
+
+    public void setWriteBatchMaxLingerMillis(long writeBatchMaxLingerMillis) {
+
+        this.writeBatchMaxLingerMillis = writeBatchMaxLingerMillis;
+    }
+
+    public boolean isNearCacheEnabled() {
+
+        return nearCacheEnabled;
+    }
+
+    public void setNearCacheEnabled(boolean nearCacheEnabled) {
+
+        this.nearCacheEnabled = nearCacheEnabled;
+    }
+
+    public int getNearCacheMaxEntries() {
+
+        return nearCacheMaxEntries;
+    }
+
+    public void setNearCacheMaxEntries(int nearCacheMaxEntries) {
+
+        this.nearCacheMaxEntries = nearCacheMaxEntries;
+    }
+
+    public long getNearCacheMaxBytes() {
+
+        return nearCacheMaxBytes;
+    }
+
+    public void setNearCacheMaxBytes(long nearCacheMaxBytes) {
+
+        this.nearCacheMaxBytes = nearCacheMaxBytes;
+    }
+
+    public long getNearCacheTtlMillis() {
+
+        return nearCacheTtlMillis;
+    }
+
+    public void setNearCacheTtlMillis(long nearCacheTtlMillis) {
+
+        this.nearCacheTtlMillis = nearCacheTtlMillis;
+    }
+
+    public String getNearCacheChannel() {
+
+        return nearCacheChannel;
+    }
+
+    public void setNearCacheChannel(String nearCacheChannel) {
+
+        this.nearCacheChannel = nearCacheChannel;
+    }
+
+    public boolean isStickyOwnerEnabled() {
+
+        return stickyOwnerEnabled;
+    }
+
+    public void setStickyOwnerEnabled(boolean stickyOwnerEnabled) {
+
+        this.stickyOwnerEnabled = stickyOwnerEnabled;
+    }
+
+    public boolean isPrefetchEnabled() {
+
+        return prefetchEnabled;
+    }
+
+    public void setPrefetchEnabled(boolean prefetchEnabled) {
+
+        this.prefetchEnabled = prefetchEnabled;
+    }
+
+    public int getPrefetchThreads() {
+
+        return prefetchThreads;
+    }
+
+    public void setPrefetchThreads(int prefetchThreads) {
+
+        this.prefetchThreads = prefetchThreads;
+    }
+
+    public boolean isCoalesceLoadsEnabled() {
+
+        return coalesceLoadsEnabled;
+    }
+
+    public void setCoalesceLoadsEnabled(boolean coalesceLoadsEnabled) {
+
+        this.coalesceLoadsEnabled = coalesceLoadsEnabled;
+    }
+
+    public boolean isVersionedWritesEnabled() {
+
+        return versionedWritesEnabled;
+    }
+
+    public void setVersionedWritesEnabled(boolean versionedWritesEnabled) {
+
+        this.versionedWritesEnabled = versionedWritesEnabled;
+    }
+
+    public boolean isLazyAttributesEnabled() {
+
+        return lazyAttributesEnabled;
+    }
+
+    public void setLazyAttributesEnabled(boolean lazyAttributesEnabled) {
+
+        this.lazyAttributesEnabled = lazyAttributesEnabled;
+    }
+
+    public int getOffloadThreshold() {
+
+        return offloadThreshold;
+    }
+
+    public void setOffloadThreshold(int offloadThreshold) {
+
+        this.offloadThreshold = offloadThreshold;
+    }
+
+    public String getKeyPrefix() {
+
+        return keyPrefix;
+    }
+
+    public void setKeyPrefix(String keyPrefix) {
+
+        this.keyPrefix = keyPrefix;
+    }
+
+    public boolean isSessionIndexEnabled() {
+
+        return sessionIndexEnabled;
+    }
+
+    public void setSessionIndexEnabled(boolean sessionIndexEnabled) {
+
+        this.sessionIndexEnabled = sessionIndexEnabled;
+    }
+
+    public int getFindSessionsLimit() {
+
+        return findSessionsLimit;
+    }
+
+    public void setFindSessionsLimit(int findSessionsLimit) {
+
+        this.findSessionsLimit = findSessionsLimit;
+    }
+
+    public boolean isExpiryReaperEnabled() {
+
+        return expiryReaperEnabled;
+    }
+
+    public void setExpiryReaperEnabled(boolean expiryReaperEnabled) {
+
+        this.expiryReaperEnabled = expiryReaperEnabled;
+    }
+
+    public int getExpiryGraceSeconds() {
+
+        return expiryGraceSeconds;
+    }
+
+    public void setExpiryGraceSeconds(int expiryGraceSeconds) {
+
+        this.expiryGraceSeconds = expiryGraceSeconds;
+    }
+
+    public long getExpiryReapIntervalMillis() {
+
+        return expiryReapIntervalMillis;
+    }
+
+    public void setExpiryReapIntervalMillis(long expiryReapIntervalMillis) {
+
+        this.expiryReapIntervalMillis = expiryReapIntervalMillis;
+    }
+
+    public int getExpiryReapBatchSize() {
+
+        return expiryReapBatchSize;
+    }
+
+    public void setExpiryReapBatchSize(int expiryReapBatchSize) {
+
+        this.expiryReapBatchSize = expiryReapBatchSize;
+    }
+
+    public String getRepositoryClass() {
+
+        return repositoryClass;
+    }
+
+    public void setRepositoryClass(String repositoryClass) {
+
+        this.repositoryClass = repositoryClass;
+    }
+
+    public long getOffHeapMaxBytes() {
+
+        return offHeapMaxBytes;
+    }
+
+    public void setOffHeapMaxBytes(long offHeapMaxBytes) {
+
+        this.offHeapMaxBytes = offHeapMaxBytes;
+    }
+
+    public int getOffHeapBlockSize() {
+
+        return offHeapBlockSize;
+    }
+
+    public void setOffHeapBlockSize(int offHeapBlockSize) {
+
+        this.offHeapBlockSize = offHeapBlockSize;
+    }
 }
@@ -0,0 +1,49 @@
+package com.nxworker.tomcatcluster;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+
+/**
+ * 请求级别的session写入阀门
+ * <p>
+ * 请求开始时通知manager开始收集修改过的session，请求处理完后(一般这时响应还在缓冲区里，还没提交)
+ * 把每个修改过的session只写一次到存储里面，避免每次setAttribute都写一次redis。
+ * 请求开始时还负责提前读取请求带来的session，属主模式下接管其他节点的session
+ */
+public class ClusterSessionValve extends ValveBase {
+
+    private final ClusterSessionManager manager;
+
+    public ClusterSessionValve(ClusterSessionManager manager) {
+
+        super(true);
+        this.manager = manager;
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+
+        //已经在请求里面(比如异步分发回来)就交给外层结束
+        boolean started = manager.beginRequest();
+        try {
+            //tomcat这时已经解析出cookie或url里的sessionId，先在后台开始读session，
+            //属主模式下接管其他节点的session，新的sessionId写回cookie
+            if (started) {
+                manager.prefetch(request.getRequestedSessionId());
+                String newId = manager.takeOver(request.getRequestedSessionId());
+                if (newId != null) {
+                    request.changeSessionId(newId);
+                }
+            }
+            getNext().invoke(request, response);
+        } finally {
+            if (started) {
+                manager.endRequest();
+            }
+        }
+    }
+}
@@ -0,0 +1,689 @@
+package com.nxworker.tomcatcluster;
+
+import org.apache.catalina.util.CustomObjectInputStream;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.servlet.http.HttpSession;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * 紧凑的二进制序列化
+ * <p>
+ * 不用ObjectOutputStream，session的时间字段写成固定头，属性值带一个字节的类型标记：
+ * String、基本类型包装类、byte[]、Date以及由它们组成的常用集合直接写内容，
+ * 其他类型才退回Java序列化。集合按内容写，不保留集合之间的引用关系。
+ * 读的时候认不出魔数就按ClusterSerializer的老格式读，新老数据可以共存
+ * <p>
+ * 格式：魔数(1) 版本(1) 创建时间(8) 最后访问时间(8) 本次访问时间(8) 超时秒数(4) isNew(1) isValid(1) id 属性个数 [属性名 属性值]...
+ * <p>
+ * 版本2在每个属性值前面多4个字节的长度，读的时候可以不反序列化，把字节留在session里等第一次用到，
+ * 一直没用到的属性保存时原样写回。两个版本都能读，开启延迟反序列化才写版本2
+ * <p>
+ * 单独存放的大属性在session里只写一个引用：类型标记、存放的key和长度，读出来是OffloadedAttribute
+ */
+public class CompactSerializer implements BufferedSerializer {
+
+    private final Log log = LogFactory.getLog(CompactSerializer.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final byte MAGIC        = (byte) 0xCB;
+    static final byte VERSION      = 1;
+    static final byte VERSION_LAZY = 2;
+
+    //访问时间之后的内容才算session内容
+    private static final int CONTENT_OFFSET = 2 + 8 * 3;
+
+    private static final byte T_NULL            = 0;
+    private static final byte T_STRING          = 1;
+    private static final byte T_INT             = 2;
+    private static final byte T_LONG            = 3;
+    private static final byte T_TRUE            = 4;
+    private static final byte T_FALSE           = 5;
+    private static final byte T_DOUBLE          = 6;
+    private static final byte T_FLOAT           = 7;
+    private static final byte T_SHORT           = 8;
+    private static final byte T_BYTE            = 9;
+    private static final byte T_CHAR            = 10;
+    private static final byte T_BYTES           = 11;
+    private static final byte T_DATE            = 12;
+    private static final byte T_ARRAY_LIST      = 13;
+    private static final byte T_LINKED_LIST     = 14;
+    private static final byte T_HASH_SET        = 15;
+    private static final byte T_LINKED_HASH_SET = 16;
+    private static final byte T_HASH_MAP        = 17;
+    private static final byte T_LINKED_HASH_MAP = 18;
+    private static final byte T_OFFLOADED       = 19;
+    private static final byte T_JAVA            = 127;
+
+    private ClassLoader loader = null;
+
+    //属性是否延迟反序列化，开启后写版本2
+    private boolean lazyAttributes = false;
+
+    //老格式的数据交给它读
+    private final ClusterSerializer legacy = new ClusterSerializer();
+
+    public void setClassLoader(ClassLoader loader) {
+
+        this.loader = loader;
+        legacy.setClassLoader(loader);
+    }
+
+    /**
+     * 开启延迟反序列化，还没升级的节点读不了版本2，所有节点都升级后再开
+     *
+     * @param lazyAttributes
+     */
+    public void setLazyAttributes(boolean lazyAttributes) {
+
+        this.lazyAttributes = lazyAttributes;
+    }
+
+    public byte[] serializeFrom(HttpSession session) throws IOException {
+
+        SerializationBuffer buffer = SerializationBuffer.acquire();
+        try {
+            serializeFrom(session, buffer);
+            return buffer.toByteArray();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    public void serializeFrom(HttpSession session, SerializationBuffer buffer) throws IOException {
+
+        ClusterSession clusterSession = (ClusterSession) session;
+        Output         out            = new Output(buffer);
+
+        out.writeByte(MAGIC);
+        out.writeByte(lazyAttributes ? VERSION_LAZY : VERSION);
+        out.writeLong(clusterSession.getCreationTimeInternal());
+        out.writeLong(clusterSession.getLastAccessedTimeInternal());
+        out.writeLong(clusterSession.getThisAccessedTimeInternal());
+        out.writeInt(clusterSession.getMaxInactiveInterval());
+        out.writeByte(clusterSession.isNewInternal() ? 1 : 0);
+        out.writeByte(clusterSession.isValidInternal() ? 1 : 0);
+        out.writeString(clusterSession.getIdInternal());
+
+        //和StandardSession一样，不能序列化的属性不存；还没反序列化过的属性直接用原来的字节，单独存放的属性只写引用
+        ArrayList<String>   names  = new ArrayList<String>();
+        ArrayList<Object>   values = new ArrayList<Object>();
+        Enumeration<String> it     = clusterSession.getAttributeNames();
+        while (it.hasMoreElements()) {
+            String             name      = it.nextElement();
+            OffloadedAttribute offloaded = clusterSession.getOffloadedAttribute(name);
+            if (offloaded != null) {
+                names.add(name);
+                values.add(offloaded);
+                continue;
+            }
+            byte[] raw = clusterSession.getRawAttribute(name, this);
+            if (raw != null) {
+                names.add(name);
+                values.add(new RawValue(raw));
+                continue;
+            }
+            Object value = clusterSession.getAttribute(name);
+            if (value == null) {
+                continue;
+            }
+            if (!isSupported(value)) {
+                log.warn("session属性不能序列化，不保存:" + name);
+                continue;
+            }
+            names.add(name);
+            values.add(value);
+        }
+
+        out.writeVarInt(names.size());
+        for (int i = 0 ; i < names.size() ; i++) {
+            out.writeString(names.get(i));
+            int lengthAt = lazyAttributes ? out.reserveInt() : -1;
+            Object value = values.get(i);
+            if (value instanceof RawValue) {
+                byte[] raw = ((RawValue) value).data;
+                out.writeBytes(raw, 0, raw.length);
+            } else if (value instanceof OffloadedAttribute) {
+                out.writeByte(T_OFFLOADED);
+                out.writeString(((OffloadedAttribute) value).getKey());
+                out.writeVarInt(((OffloadedAttribute) value).getLength());
+            } else {
+                writeValue(out, value);
+            }
+            if (lengthAt >= 0) {
+                out.patchInt(lengthAt, out.position() - lengthAt - 4);
+            }
+        }
+        out.finish();
+    }
+
+    public HttpSession deserializeInto(byte[] data, HttpSession session) throws IOException, ClassNotFoundException {
+
+        return deserializeInto(data, 0, data.length, session);
+    }
+
+    public HttpSession deserializeInto(byte[] data, int offset, int length, HttpSession session) throws IOException, ClassNotFoundException {
+
+        if (length == 0 || data[offset] != MAGIC) {
+            return legacy.deserializeInto(data, offset, length, session);
+        }
+
+        ClusterSession clusterSession = (ClusterSession) session;
+        Input          in             = new Input(data, offset, length);
+
+        in.readByte();
+        byte version = in.readByte();
+        if (version != VERSION && version != VERSION_LAZY) {
+            throw new IOException("unknown compact session format version " + version);
+        }
+        clusterSession.setCreationTime(in.readLong());
+        long lastAccessedTime = in.readLong();
+        long thisAccessedTime = in.readLong();
+        clusterSession.setAccessTimesInternal(lastAccessedTime, thisAccessedTime);
+        clusterSession.setMaxInactiveInterval(in.readInt());
+        clusterSession.setNew(in.readByte() != 0);
+        clusterSession.setValid(in.readByte() != 0);
+        clusterSession.setId(in.readString());
+
+        int count = in.readVarInt();
+        for (int i = 0 ; i < count ; i++) {
+            String name        = in.readString();
+            int    valueLength = version == VERSION_LAZY ? in.readInt() : -1;
+            if (in.peek() == T_OFFLOADED) {
+                in.readByte();
+                clusterSession.putOffloadedAttributeInternal(name, in.readString(), in.readVarInt());
+            } else if (valueLength >= 0 && lazyAttributes) {
+                //只复制出这个属性的字节，用到时再反序列化
+                clusterSession.putLazyAttributeInternal(name, in.readBytes(valueLength), this);
+            } else {
+                clusterSession.putAttributeInternal(name, readValue(in));
+            }
+        }
+        return session;
+    }
+
+    public byte[] serializeAttribute(Object value) throws IOException {
+
+        SerializationBuffer buffer = SerializationBuffer.acquire();
+        try {
+            serializeAttribute(value, buffer);
+            return buffer.toByteArray();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    public void serializeAttribute(Object value, SerializationBuffer buffer) throws IOException {
+
+        Output out = new Output(buffer);
+        writeValue(out, value);
+        out.finish();
+    }
+
+    public Object deserializeAttribute(byte[] data) throws IOException, ClassNotFoundException {
+
+        return deserializeAttribute(data, 0, data.length);
+    }
+
+    public Object deserializeAttribute(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+
+        //ClusterSerializer写的老数据以Java序列化的魔数开头
+        if (length > 0 && data[offset] == (byte) 0xAC) {
+            return legacy.deserializeAttribute(data, offset, length);
+        }
+        return readValue(new Input(data, offset, length));
+    }
+
+    public long contentDigest(byte[] data, HttpSession session) {
+
+        return contentDigest(data, 0, data.length, session);
+    }
+
+    public long contentDigest(byte[] data, int offset, int length, HttpSession session) {
+
+        if (length < CONTENT_OFFSET || data[offset] != MAGIC) {
+            return legacy.contentDigest(data, offset, length, session);
+        }
+        return ContentDigest.hash64(data, offset + CONTENT_OFFSET, length - CONTENT_OFFSET);
+    }
+
+    private static boolean isSupported(Object value) {
+
+        return value instanceof Serializable;
+    }
+
+    private void writeValue(Output out, Object value) throws IOException {
+
+        if (value == null) {
+            out.writeByte(T_NULL);
+            return;
+        }
+
+        Class<?> type = value.getClass();
+        if (type == String.class) {
+            out.writeByte(T_STRING);
+            out.writeString((String) value);
+        } else if (type == Integer.class) {
+            out.writeByte(T_INT);
+            out.writeVarLong((Integer) value);
+        } else if (type == Long.class) {
+            out.writeByte(T_LONG);
+            out.writeVarLong((Long) value);
+        } else if (type == Boolean.class) {
+            out.writeByte((Boolean) value ? T_TRUE : T_FALSE);
+        } else if (type == Double.class) {
+            out.writeByte(T_DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (type == Float.class) {
+            out.writeByte(T_FLOAT);
+            out.writeInt(Float.floatToRawIntBits((Float) value));
+        } else if (type == Short.class) {
+            out.writeByte(T_SHORT);
+            out.writeVarLong((Short) value);
+        } else if (type == Byte.class) {
+            out.writeByte(T_BYTE);
+            out.writeByte((Byte) value);
+        } else if (type == Character.class) {
+            out.writeByte(T_CHAR);
+            out.writeVarInt((Character) value);
+        } else if (type == byte[].class) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(T_BYTES);
+            out.writeVarInt(bytes.length);
+            out.writeBytes(bytes, 0, bytes.length);
+        } else if (type == Date.class) {
+            out.writeByte(T_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (type == ArrayList.class) {
+            writeCollection(out, T_ARRAY_LIST, (Collection<?>) value);
+        } else if (type == LinkedList.class) {
+            writeCollection(out, T_LINKED_LIST, (Collection<?>) value);
+        } else if (type == HashSet.class) {
+            writeCollection(out, T_HASH_SET, (Collection<?>) value);
+        } else if (type == LinkedHashSet.class) {
+            writeCollection(out, T_LINKED_HASH_SET, (Collection<?>) value);
+        } else if (type == HashMap.class) {
+            writeMap(out, T_HASH_MAP, (Map<?, ?>) value);
+        } else if (type == LinkedHashMap.class) {
+            writeMap(out, T_LINKED_HASH_MAP, (Map<?, ?>) value);
+        } else {
+            //其他类型用Java序列化，先写到另一个缓冲里才知道长度
+            SerializationBuffer java = SerializationBuffer.acquire();
+            try {
+                ObjectOutputStream oos = new ObjectOutputStream(java);
+                oos.writeObject(value);
+                oos.flush();
+                out.writeByte(T_JAVA);
+                out.writeVarInt(java.size());
+                out.writeBytes(java.getBuffer(), 0, java.size());
+            } finally {
+                java.release();
+            }
+        }
+    }
+
+    private void writeCollection(Output out, byte tag, Collection<?> collection) throws IOException {
+
+        out.writeByte(tag);
+        out.writeVarInt(collection.size());
+        for (Object element : collection) {
+            writeValue(out, element);
+        }
+    }
+
+    private void writeMap(Output out, byte tag, Map<?, ?> map) throws IOException {
+
+        out.writeByte(tag);
+        out.writeVarInt(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            writeValue(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private Object readValue(Input in) throws IOException, ClassNotFoundException {
+
+        byte tag = in.readByte();
+        switch (tag) {
+            case T_NULL:
+                return null;
+            case T_STRING:
+                return in.readString();
+            case T_INT:
+                return (int) in.readVarLong();
+            case T_LONG:
+                return in.readVarLong();
+            case T_TRUE:
+                return Boolean.TRUE;
+            case T_FALSE:
+                return Boolean.FALSE;
+            case T_DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case T_FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case T_SHORT:
+                return (short) in.readVarLong();
+            case T_BYTE:
+                return in.readByte();
+            case T_CHAR:
+                return (char) in.readVarInt();
+            case T_BYTES:
+                return in.readBytes(in.readVarInt());
+            case T_DATE:
+                return new Date(in.readLong());
+            case T_ARRAY_LIST: {
+                int size = in.readVarInt();
+                return readCollection(in, new ArrayList<Object>(size), size);
+            }
+            case T_LINKED_LIST:
+                return readCollection(in, new LinkedList<Object>(), in.readVarInt());
+            case T_HASH_SET: {
+                int size = in.readVarInt();
+                return readCollection(in, new HashSet<Object>(capacity(size)), size);
+            }
+            case T_LINKED_HASH_SET: {
+                int size = in.readVarInt();
+                return readCollection(in, new LinkedHashSet<Object>(capacity(size)), size);
+            }
+            case T_HASH_MAP: {
+                int size = in.readVarInt();
+                return readMap(in, new HashMap<Object, Object>(capacity(size)), size);
+            }
+            case T_LINKED_HASH_MAP: {
+                int size = in.readVarInt();
+                return readMap(in, new LinkedHashMap<Object, Object>(capacity(size)), size);
+            }
+            case T_JAVA: {
+                //直接在原数组上读，不复制出来
+                int               length = in.readVarInt();
+                int               start  = in.skip(length);
+                ObjectInputStream ois    = new CustomObjectInputStream(new ByteArrayInputStream(in.array(), start, length), loader);
+                return ois.readObject();
+            }
+            default:
+                throw new IOException("unknown compact value tag " + tag);
+        }
+    }
+
+    private static int capacity(int size) {
+
+        return Math.max(16, (int) (size / 0.75f) + 1);
+    }
+
+    private Collection<Object> readCollection(Input in, Collection<Object> collection, int size) throws IOException, ClassNotFoundException {
+
+        for (int i = 0 ; i < size ; i++) {
+            collection.add(readValue(in));
+        }
+        return collection;
+    }
+
+    private Map<Object, Object> readMap(Input in, Map<Object, Object> map, int size) throws IOException, ClassNotFoundException {
+
+        for (int i = 0 ; i < size ; i++) {
+            Object key = readValue(in);
+            map.put(key, readValue(in));
+        }
+        return map;
+    }
+
+    /**
+     * 还没反序列化过的属性原来的字节，和byte[]类型的属性值区分开
+     */
+    private static class RawValue {
+
+        private final byte[] data;
+
+        private RawValue(byte[] data) {
+
+            this.data = data;
+        }
+    }
+
+    /**
+     * 输出，写在SerializationBuffer的数组上，写完调finish把长度交回去
+     */
+    static class Output {
+
+        private final SerializationBuffer target;
+
+        private byte[] buf;
+        private int    pos;
+
+        Output(SerializationBuffer target) {
+
+            this.target = target;
+            this.buf = target.getBuffer();
+            this.pos = target.size();
+        }
+
+        private void ensure(int n) {
+
+            if (pos + n > buf.length) {
+                target.setSize(pos);
+                target.ensureCapacity(n);
+                buf = target.getBuffer();
+            }
+        }
+
+        void writeByte(int b) {
+
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) {
+
+            ensure(length);
+            System.arraycopy(bytes, offset, buf, pos, length);
+            pos += length;
+        }
+
+        void writeInt(int v) {
+
+            ensure(4);
+            buf[pos++] = (byte) (v >>> 24);
+            buf[pos++] = (byte) (v >>> 16);
+            buf[pos++] = (byte) (v >>> 8);
+            buf[pos++] = (byte) v;
+        }
+
+        void writeLong(long v) {
+
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        void writeVarInt(int v) {
+
+            ensure(5);
+            while ((v & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        /**
+         * zigzag编码的变长long，绝对值小的数占的字节少
+         */
+        void writeVarLong(long v) {
+
+            long zigzag = (v << 1) ^ (v >> 63);
+            ensure(10);
+            while ((zigzag & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buf[pos++] = (byte) zigzag;
+        }
+
+        void writeString(String s) {
+
+            byte[] bytes = s.getBytes(UTF8);
+            writeVarInt(bytes.length);
+            writeBytes(bytes, 0, bytes.length);
+        }
+
+        int position() {
+
+            return pos;
+        }
+
+        /**
+         * 先占4个字节，后面的内容写完再用patchInt填进去
+         *
+         * @return 占位的位置
+         */
+        int reserveInt() {
+
+            ensure(4);
+            int at = pos;
+            pos += 4;
+            return at;
+        }
+
+        void patchInt(int at, int v) {
+
+            buf[at] = (byte) (v >>> 24);
+            buf[at + 1] = (byte) (v >>> 16);
+            buf[at + 2] = (byte) (v >>> 8);
+            buf[at + 3] = (byte) v;
+        }
+
+        void finish() {
+
+            target.setSize(pos);
+        }
+    }
+
+    /**
+     * 输入，直接读redis返回的数组或者解压缓冲里的一段
+     */
+    static class Input {
+
+        private final byte[] buf;
+        private final int    limit;
+        private       int    pos;
+
+        Input(byte[] buf, int offset, int length) {
+
+            this.buf = buf;
+            this.pos = offset;
+            this.limit = offset + length;
+        }
+
+        private void require(int n) throws EOFException {
+
+            if (n < 0 || pos + n > limit) {
+                throw new EOFException();
+            }
+        }
+
+        byte readByte() throws EOFException {
+
+            require(1);
+            return buf[pos++];
+        }
+
+        byte peek() throws EOFException {
+
+            require(1);
+            return buf[pos];
+        }
+
+        byte[] array() {
+
+            return buf;
+        }
+
+        /**
+         * 跳过length个字节
+         *
+         * @param length
+         * @return 跳过的这段在数组里的开始位置
+         * @throws EOFException
+         */
+        int skip(int length) throws EOFException {
+
+            require(length);
+            int start = pos;
+            pos += length;
+            return start;
+        }
+
+        byte[] readBytes(int length) throws EOFException {
+
+            require(length);
+            byte[] bytes = new byte[length];
+            System.arraycopy(buf, pos, bytes, 0, length);
+            pos += length;
+            return bytes;
+        }
+
+        int readInt() throws EOFException {
+
+            require(4);
+            return ((buf[pos++] & 0xFF) << 24) | ((buf[pos++] & 0xFF) << 16)
+                    | ((buf[pos++] & 0xFF) << 8) | (buf[pos++] & 0xFF);
+        }
+
+        long readLong() throws EOFException {
+
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        int readVarInt() throws IOException {
+
+            int result = 0;
+            for (int shift = 0 ; shift < 32 ; shift += 7) {
+                byte b = readByte();
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("malformed varint");
+        }
+
+        long readVarLong() throws IOException {
+
+            long zigzag = 0;
+            for (int shift = 0 ; shift < 64 ; shift += 7) {
+                byte b = readByte();
+                zigzag |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return (zigzag >>> 1) ^ -(zigzag & 1);
+                }
+            }
+            throw new IOException("malformed varlong");
+        }
+
+        String readString() throws IOException {
+
+            int length = readVarInt();
+            require(length);
+            String s = new String(buf, pos, length, UTF8);
+            pos += length;
+            return s;
+        }
+    }
+}
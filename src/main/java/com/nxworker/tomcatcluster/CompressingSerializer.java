@@ -0,0 +1,265 @@
+package com.nxworker.tomcatcluster;
+
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 压缩层，包在任何Serializer外面
+ * <p>
+ * 超过阈值的数据才压缩，压缩后的数据第一个字节标明压缩算法，后面4个字节是原始长度；
+ * 没压缩的数据原样保存，不加头。ClusterSerializer和CompactSerializer的数据都不会以压缩头开头，
+ * 所以老数据、没压缩的数据和压缩过的数据可以混在一起读，关掉压缩后以前压缩过的数据也能读
+ */
+public class CompressingSerializer implements Serializer {
+
+    public static final String CODEC_NONE    = "none";
+    public static final String CODEC_DEFLATE = "deflate";
+    public static final String CODEC_LZF     = "lzf";
+
+    static final byte HEADER_DEFLATE = (byte) 0xF1;
+    static final byte HEADER_LZF     = (byte) 0xF2;
+
+    private static final int HEADER_LENGTH = 5;
+
+    //Deflater/Inflater每个线程一个，reset后复用，省掉每次创建和释放native资源
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+
+        @Override
+        protected Deflater initialValue() {
+
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+
+        @Override
+        protected Inflater initialValue() {
+
+            return new Inflater();
+        }
+    };
+
+    private final Serializer delegate;
+    private final String     codec;
+    private final int        threshold;
+
+    /**
+     * @param delegate  实际的序列化
+     * @param codec     none、deflate 或 lzf
+     * @param threshold 超过这么多字节才压缩
+     */
+    public CompressingSerializer(Serializer delegate, String codec, int threshold) {
+
+        if (!CODEC_NONE.equals(codec) && !CODEC_DEFLATE.equals(codec) && !CODEC_LZF.equals(codec)) {
+            throw new IllegalArgumentException("unknown compression codec " + codec);
+        }
+        this.delegate = delegate;
+        this.codec = codec;
+        this.threshold = threshold;
+    }
+
+    public void setClassLoader(ClassLoader loader) {
+
+        delegate.setClassLoader(loader);
+    }
+
+    public byte[] serializeFrom(HttpSession session) throws IOException {
+
+        if (!(delegate instanceof BufferedSerializer)) {
+            byte[] data = delegate.serializeFrom(session);
+            return compress(data, data.length);
+        }
+        SerializationBuffer raw = SerializationBuffer.acquire();
+        try {
+            ((BufferedSerializer) delegate).serializeFrom(session, raw);
+            return compress(raw.getBuffer(), raw.size());
+        } finally {
+            raw.release();
+        }
+    }
+
+    public HttpSession deserializeInto(byte[] data, HttpSession session) throws IOException, ClassNotFoundException {
+
+        if (!isCompressed(data)) {
+            return delegate.deserializeInto(data, session);
+        }
+        SerializationBuffer raw = decompress(data);
+        try {
+            if (delegate instanceof BufferedSerializer) {
+                return ((BufferedSerializer) delegate).deserializeInto(raw.getBuffer(), 0, raw.size(), session);
+            }
+            return delegate.deserializeInto(raw.toByteArray(), session);
+        } finally {
+            raw.release();
+        }
+    }
+
+    public byte[] serializeAttribute(Object value) throws IOException {
+
+        if (!(delegate instanceof BufferedSerializer)) {
+            byte[] data = delegate.serializeAttribute(value);
+            return compress(data, data.length);
+        }
+        SerializationBuffer raw = SerializationBuffer.acquire();
+        try {
+            ((BufferedSerializer) delegate).serializeAttribute(value, raw);
+            return compress(raw.getBuffer(), raw.size());
+        } finally {
+            raw.release();
+        }
+    }
+
+    public Object deserializeAttribute(byte[] data) throws IOException, ClassNotFoundException {
+
+        if (!isCompressed(data)) {
+            return delegate.deserializeAttribute(data);
+        }
+        SerializationBuffer raw = decompress(data);
+        try {
+            if (delegate instanceof BufferedSerializer) {
+                return ((BufferedSerializer) delegate).deserializeAttribute(raw.getBuffer(), 0, raw.size());
+            }
+            return delegate.deserializeAttribute(raw.toByteArray());
+        } finally {
+            raw.release();
+        }
+    }
+
+    public long contentDigest(byte[] data, HttpSession session) {
+
+        if (!isCompressed(data)) {
+            return delegate.contentDigest(data, session);
+        }
+        SerializationBuffer raw;
+        try {
+            raw = decompress(data);
+        } catch (IOException e) {
+            //解不开就按整个数据算，最多多写一次
+            return ContentDigest.hash64(data);
+        }
+        try {
+            if (delegate instanceof BufferedSerializer) {
+                return ((BufferedSerializer) delegate).contentDigest(raw.getBuffer(), 0, raw.size(), session);
+            }
+            return delegate.contentDigest(raw.toByteArray(), session);
+        } finally {
+            raw.release();
+        }
+    }
+
+    static boolean isCompressed(byte[] data) {
+
+        return data.length >= HEADER_LENGTH && (data[0] == HEADER_LZF || data[0] == HEADER_DEFLATE);
+    }
+
+    /**
+     * 压缩，压缩后没变小就原样返回。压缩在线程缓冲里做，最后只复制一次刚好大小的结果交给redis客户端
+     *
+     * @param data   原始数据，可以是缓冲的底层数组
+     * @param length 原始数据长度
+     * @return
+     */
+    byte[] compress(byte[] data, int length) {
+
+        if (CODEC_NONE.equals(codec) || length < threshold) {
+            return exact(data, length);
+        }
+
+        SerializationBuffer buffer = SerializationBuffer.acquire();
+        try {
+            buffer.ensureCapacity(HEADER_LENGTH + length + length / 32 + 2);
+            byte[] out = buffer.getBuffer();
+            int    end;
+            if (CODEC_LZF.equals(codec)) {
+                out[0] = HEADER_LZF;
+                end = LzfCodec.compress(data, length, out, HEADER_LENGTH);
+            } else {
+                out[0] = HEADER_DEFLATE;
+                Deflater deflater = DEFLATER.get();
+                deflater.reset();
+                deflater.setInput(data, 0, length);
+                deflater.finish();
+                end = HEADER_LENGTH + deflater.deflate(out, HEADER_LENGTH, out.length - HEADER_LENGTH);
+                if (!deflater.finished()) {
+                    return exact(data, length);
+                }
+            }
+            if (end >= length) {
+                return exact(data, length);
+            }
+
+            writeInt(out, 1, length);
+            buffer.setSize(end);
+            return buffer.toByteArray();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * 解压到线程缓冲里，用完要release
+     *
+     * @param data 带压缩头的数据
+     * @return
+     * @throws IOException
+     */
+    SerializationBuffer decompress(byte[] data) throws IOException {
+
+        int length = readInt(data, 1);
+        if (length < 0) {
+            throw new IOException("corrupt compressed session data");
+        }
+        SerializationBuffer buffer = SerializationBuffer.acquire();
+        boolean             ok     = false;
+        try {
+            buffer.ensureCapacity(length);
+            byte[] out = buffer.getBuffer();
+            if (data[0] == HEADER_LZF) {
+                LzfCodec.decompress(data, HEADER_LENGTH, data.length, out, length);
+            } else {
+                Inflater inflater = INFLATER.get();
+                inflater.reset();
+                inflater.setInput(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+                int n = inflater.inflate(out, 0, length);
+                if (n != length || !inflater.finished()) {
+                    throw new IOException("corrupt compressed session data");
+                }
+            }
+            buffer.setSize(length);
+            ok = true;
+            return buffer;
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed session data");
+        } finally {
+            if (!ok) {
+                buffer.release();
+            }
+        }
+    }
+
+    private static byte[] exact(byte[] data, int length) {
+
+        //data可能是池里缓冲的底层数组，长度刚好相等也要复制，否则下次序列化会把交出去的结果覆盖掉
+        byte[] result = new byte[length];
+        System.arraycopy(data, 0, result, 0, length);
+        return result;
+    }
+
+    private static void writeInt(byte[] buf, int pos, int v) {
+
+        buf[pos] = (byte) (v >>> 24);
+        buf[pos + 1] = (byte) (v >>> 16);
+        buf[pos + 2] = (byte) (v >>> 8);
+        buf[pos + 3] = (byte) v;
+    }
+
+    private static int readInt(byte[] buf, int pos) {
+
+        return ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16)
+                | ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,73 @@
+package com.nxworker.tomcatcluster;
+
+import redis.clients.util.MurmurHash;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 带虚拟节点的一致性哈希
+ * <p>
+ * 每个节点按名字在环上放virtualNodes个点，key落在顺时针方向的第一个点所属的节点上。
+ * 节点名字不变位置就不变，加一个节点只会从原来每个节点上各分走一小部分key，大约是1/(n+1)
+ *
+ * @param <T> 节点
+ */
+public class ConsistentHash<T> {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //和jedis的分片用同一个种子
+    private static final int SEED = 0x1234ABCD;
+
+    private final TreeMap<Long, T> ring = new TreeMap<Long, T>();
+    private final List<T>          nodes;
+
+    /**
+     * @param names        节点名字，决定节点在环上的位置，一般用host:port
+     * @param nodes        节点，和名字一一对应
+     * @param virtualNodes 每个节点的虚拟节点数
+     */
+    public ConsistentHash(List<String> names, List<T> nodes, int virtualNodes) {
+
+        if (names.size() != nodes.size() || nodes.isEmpty()) {
+            throw new IllegalArgumentException("names and nodes must be non-empty and of the same size");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<T>(nodes));
+        for (int i = 0 ; i < nodes.size() ; i++) {
+            for (int v = 0 ; v < virtualNodes ; v++) {
+                ring.put(hash(names.get(i) + "#" + v), nodes.get(i));
+            }
+        }
+    }
+
+    private static long hash(String key) {
+
+        return MurmurHash.hash64A(key.getBytes(UTF8), SEED);
+    }
+
+    /**
+     * key所在的节点
+     *
+     * @param key
+     * @return
+     */
+    public T get(String key) {
+
+        //只有一个节点不用算
+        if (nodes.size() == 1) {
+            return nodes.get(0);
+        }
+        Map.Entry<Long, T> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    public List<T> getNodes() {
+
+        return nodes;
+    }
+}
@@ -0,0 +1,57 @@
+package com.nxworker.tomcatcluster;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 序列化内容的摘要，用来判断session内容有没有变化
+ * <p>
+ * 用64位FNV-1a，算得快，64位碰撞的概率可以忽略。
+ * FNV可以被人为构造碰撞，内容要当作redis key、在不同session之间共用的时候用SHA-1
+ */
+public class ContentDigest {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME        = 0x100000001b3L;
+
+    private ContentDigest() {
+
+    }
+
+    public static long hash64(byte[] data) {
+
+        return hash64(data, 0, data.length);
+    }
+
+    public static long hash64(byte[] data, int offset, int length) {
+
+        long hash = OFFSET_BASIS;
+        for (int i = offset, end = offset + length ; i < end ; i++) {
+            hash ^= data[i] & 0xff;
+            hash *= PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * SHA-1摘要的16进制字符串
+     *
+     * @param data
+     * @return
+     */
+    public static String sha1Hex(byte[] data) {
+
+        try {
+            byte[]        digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder hex    = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(HEX[(b >> 4) & 0x0F]).append(HEX[b & 0x0F]);
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
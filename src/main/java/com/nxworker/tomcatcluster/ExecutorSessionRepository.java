@@ -0,0 +1,100 @@
+package com.nxworker.tomcatcluster;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 用线程池把阻塞的存储包装成异步存储
+ * <p>
+ * jedis本身是阻塞的，这里只是把等redis和反序列化的时间挪到后台线程上。
+ * 队列满了由调用线程自己执行，相当于退回同步调用，不会丢操作
+ */
+public class ExecutorSessionRepository implements AsyncSessionRepository {
+
+    //等待执行的操作最多多少个
+    private static final int QUEUE_SIZE = 1024;
+
+    private final SessionRepository  delegate;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param delegate 阻塞的存储
+     * @param threads  后台线程数
+     */
+    public ExecutorSessionRepository(SessionRepository delegate, int threads) {
+
+        this.delegate = delegate;
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "ClusterSession-Async-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        //空闲的线程也回收掉
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public Future<Session> findAsync(final String id, final Manager manager) {
+
+        return executor.submit(new Callable<Session>() {
+
+            public Session call() throws Exception {
+
+                return delegate.find(id, manager);
+            }
+        });
+    }
+
+    public Future<Boolean> saveAsync(final Session session) {
+
+        return executor.submit(new Callable<Boolean>() {
+
+            public Boolean call() throws Exception {
+
+                return delegate.save(session);
+            }
+        });
+    }
+
+    public Future<Void> removeAsync(final Session session) {
+
+        return executor.submit(new Callable<Void>() {
+
+            public Void call() throws Exception {
+
+                delegate.remove(session);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> expireAsync(final Session session, final int seconds) {
+
+        return executor.submit(new Callable<Void>() {
+
+            public Void call() throws Exception {
+
+                delegate.expire(session, seconds);
+                return null;
+            }
+        });
+    }
+
+    public void close() {
+
+        executor.shutdown();
+    }
+}
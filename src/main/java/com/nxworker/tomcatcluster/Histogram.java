@@ -0,0 +1,125 @@
+package com.nxworker.tomcatcluster;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的分段直方图，记录耗时或大小的分布
+ * <p>
+ * 小于16的值每个值一个桶，之后每翻一倍分8个桶，误差不超过12.5%。
+ * 每个线程散列到自己的一段桶上计数，和StripedCounter一样，读的时候合起来算百分位
+ */
+public class Histogram {
+
+    private static final int LINEAR  = 16;
+    private static final int SUB     = 8;
+    private static final int BUCKETS = LINEAR + (63 - 4) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(StripedCounter.STRIPES * BUCKETS);
+    private final StripedCounter  sum    = new StripedCounter();
+
+    /**
+     * 值对应的桶
+     *
+     * @param value
+     * @return
+     */
+    static int bucket(long value) {
+
+        if (value < LINEAR) {
+            return value < 0 ? 0 : (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub      = (int) (value >>> (exponent - 3)) & (SUB - 1);
+        return LINEAR + (exponent - 4) * SUB + sub;
+    }
+
+    /**
+     * 桶里最大的值
+     *
+     * @param bucket
+     * @return
+     */
+    static long upperBound(int bucket) {
+
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR) / SUB + 4;
+        int sub      = (bucket - LINEAR) % SUB;
+        return ((long) (SUB + sub + 1) << (exponent - 3)) - 1;
+    }
+
+    public void record(long value) {
+
+        counts.getAndIncrement(StripedCounter.stripe() * BUCKETS + bucket(value));
+        sum.add(value);
+    }
+
+    /**
+     * 各个桶的计数，所有分段合起来
+     *
+     * @return
+     */
+    private long[] snapshot() {
+
+        long[] merged = new long[BUCKETS];
+        for (int stripe = 0 ; stripe < StripedCounter.STRIPES ; stripe++) {
+            int base = stripe * BUCKETS;
+            for (int i = 0 ; i < BUCKETS ; i++) {
+                merged[i] += counts.get(base + i);
+            }
+        }
+        return merged;
+    }
+
+    public long count() {
+
+        long   count  = 0;
+        long[] merged = snapshot();
+        for (long c : merged) {
+            count += c;
+        }
+        return count;
+    }
+
+    public long mean() {
+
+        long count = count();
+        return count == 0 ? 0 : sum.sum() / count;
+    }
+
+    /**
+     * 百分位数，返回所在桶的上界
+     *
+     * @param percentile 0到100
+     * @return 没有数据时返回0
+     */
+    public long percentile(double percentile) {
+
+        long[] merged = snapshot();
+        long   count  = 0;
+        for (long c : merged) {
+            count += c;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0 ; i < BUCKETS ; i++) {
+            seen += merged[i];
+            if (seen >= rank && merged[i] > 0) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    public void reset() {
+
+        for (int i = 0 ; i < counts.length() ; i++) {
+            counts.set(i, 0);
+        }
+        sum.reset();
+    }
+}
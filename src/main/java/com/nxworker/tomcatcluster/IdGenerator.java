@@ -1,12 +1,102 @@
 package com.nxworker.tomcatcluster;
 
-import java.util.UUID;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 
 /**
  * 生成id算法
+ * <p>
+ * 不用UUID.randomUUID()，它所有线程共用一个SecureRandom，创建session多的时候会互相等。
+ * 这里随机数源按CPU数分成多份，线程按线程id散列到其中一份；每个线程一次取一块随机字节，
+ * 用完再取，取随机数的次数也降到几十分之一
  */
 public class IdGenerator {
 
+    //每个线程一次取的随机字节数
+    private static final int BLOCK_SIZE = 512;
+
+    private static final SecureRandom[] RANDOMS = createRandoms();
+
+    private static final ThreadLocal<Entropy> ENTROPY = new ThreadLocal<Entropy>() {
+
+        @Override
+        protected Entropy initialValue() {
+
+            return new Entropy();
+        }
+    };
+
+    /**
+     * 随机数源个数取CPU数两倍向上的2的幂。用SHA1PRNG，每个实例单独加锁；
+     * 种子从系统的SecureRandom取，避免每个实例自己读/dev/random启动时卡住
+     *
+     * @return
+     */
+    private static SecureRandom[] createRandoms() {
+
+        int count = 1;
+        while (count < Runtime.getRuntime().availableProcessors() * 2) {
+            count <<= 1;
+        }
+        SecureRandom   seeder  = new SecureRandom();
+        SecureRandom[] randoms = new SecureRandom[count];
+        for (int i = 0 ; i < count ; i++) {
+            byte[] seed = new byte[32];
+            seeder.nextBytes(seed);
+            try {
+                randoms[i] = SecureRandom.getInstance("SHA1PRNG");
+                randoms[i].setSeed(seed);
+            } catch (NoSuchAlgorithmException e) {
+                randoms[i] = new SecureRandom(seed);
+            }
+        }
+        return randoms;
+    }
+
+    /**
+     * 线程自己的一块随机字节
+     */
+    private static class Entropy {
+
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private       int    pos   = BLOCK_SIZE;
+    }
+
+    /**
+     * 取随机字节，先从当前线程的随机字节块里拿，用完从随机数源再取一块
+     *
+     * @param out
+     */
+    public static void nextBytes(byte[] out) {
+
+        Entropy entropy = ENTROPY.get();
+        int     copied  = 0;
+        while (copied < out.length) {
+            if (entropy.pos == BLOCK_SIZE) {
+                RANDOMS[(int) (Thread.currentThread().getId() & (RANDOMS.length - 1))].nextBytes(entropy.block);
+                entropy.pos = 0;
+            }
+            int n = Math.min(out.length - copied, BLOCK_SIZE - entropy.pos);
+            System.arraycopy(entropy.block, entropy.pos, out, copied, n);
+            entropy.pos += n;
+            copied += n;
+        }
+    }
+
+    /**
+     * 生成byteLength个随机字节的URL Base64字符串，不带补位，16个字节是22位
+     *
+     * @param byteLength
+     * @return
+     */
+    public static String randomString(int byteLength) {
+
+        byte[] data = new byte[byteLength];
+        nextBytes(data);
+        char[] out = encode(data);
+        return new String(out, 0, (byteLength * 4 + 2) / 3);
+    }
+
     /**
      * 采用URL Base64字符，即把“+/”换成“-_”
      */
@@ -18,7 +108,7 @@ public class IdGenerator {
      * @param data
      * @return
      */
-    private char[] encode(byte[] data) {
+    private static char[] encode(byte[] data) {
 
         char[]  out = new char[((data.length + 2) / 3) * 4];
         boolean quad, trip;
@@ -47,21 +137,18 @@ public class IdGenerator {
     }
 
     /**
-     * 转成字节
+     * 随机UUID的16个字节，和UUID.randomUUID()一样设置版本号和变体位
      *
      * @return
      */
-    private byte[] toBytes() {
+    private static byte[] toBytes() {
 
-        UUID   uuid   = UUID.randomUUID();
-        long   msb    = uuid.getMostSignificantBits();
-        long   lsb    = uuid.getLeastSignificantBits();
         byte[] buffer = new byte[16];
-
-        for (int i = 0 ; i < 8 ; i++) {
-            buffer[i] = (byte) ((msb >>> 8 * (7 - i)) & 0xFF);
-            buffer[i + 8] = (byte) ((lsb >>> 8 * (7 - i)) & 0xFF);
-        }
+        nextBytes(buffer);
+        buffer[6] &= 0x0f;
+        buffer[6] |= 0x40;
+        buffer[8] &= 0x3f;
+        buffer[8] |= 0x80;
         return buffer;
     }
 
@@ -83,9 +170,13 @@ public class IdGenerator {
      */
     public static String getUUIDString() {
 
-        UUID   uuid = UUID.randomUUID();
-        long   msb  = uuid.getMostSignificantBits();
-        long   lsb  = uuid.getLeastSignificantBits();
+        byte[] uuid = toBytes();
+        long   msb  = 0;
+        long   lsb  = 0;
+        for (int i = 0 ; i < 8 ; i++) {
+            msb = (msb << 8) | (uuid[i] & 0xFF);
+            lsb = (lsb << 8) | (uuid[i + 8] & 0xFF);
+        }
         char[] out  = new char[24];
         int    tmp  = 0, idx = 0;
 
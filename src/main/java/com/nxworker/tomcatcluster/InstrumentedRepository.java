@@ -0,0 +1,140 @@
+package com.nxworker.tomcatcluster;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+
+import java.io.IOException;
+
+/**
+ * 统计存储操作的耗时、失败次数和session序列化后的大小
+ * <p>
+ * 直接包在redis存储外面，近端缓存、属主模式在它外层，统计的是真正到redis的操作
+ */
+public class InstrumentedRepository implements SnapshotRepository {
+
+    private final SessionRepository delegate;
+    private final SessionStatistics statistics;
+
+    public InstrumentedRepository(SessionRepository delegate, SessionStatistics statistics) {
+
+        this.delegate = delegate;
+        this.statistics = statistics;
+    }
+
+    public boolean save(Session session) {
+
+        long start = System.nanoTime();
+        try {
+            boolean written = delegate.save(session);
+            if (written) {
+                statistics.recordSize(((ClusterSession) session).getSerializedSize());
+            }
+            return written;
+        } catch (RuntimeException e) {
+            statistics.recordError(SessionStatistics.OP_SAVE);
+            throw e;
+        } finally {
+            statistics.recordLatency(SessionStatistics.OP_SAVE, System.nanoTime() - start);
+        }
+    }
+
+    public Session find(String id, Manager manager) throws IOException {
+
+        long start = System.nanoTime();
+        try {
+            Session session = delegate.find(id, manager);
+            if (session != null) {
+                statistics.recordSize(((ClusterSession) session).getSerializedSize());
+            }
+            return session;
+        } catch (IOException e) {
+            statistics.recordError(SessionStatistics.OP_FIND);
+            throw e;
+        } catch (RuntimeException e) {
+            statistics.recordError(SessionStatistics.OP_FIND);
+            throw e;
+        } finally {
+            statistics.recordLatency(SessionStatistics.OP_FIND, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 分两步读，存储不支持时抛UnsupportedOperationException
+     *
+     * @param id
+     * @param manager
+     * @return
+     * @throws IOException
+     */
+    public LoadedSession fetch(String id, Manager manager) throws IOException {
+
+        long start = System.nanoTime();
+        try {
+            return snapshots().fetch(id, manager);
+        } catch (IOException e) {
+            statistics.recordError(SessionStatistics.OP_FIND);
+            throw e;
+        } catch (RuntimeException e) {
+            statistics.recordError(SessionStatistics.OP_FIND);
+            throw e;
+        } finally {
+            statistics.recordLatency(SessionStatistics.OP_FIND, System.nanoTime() - start);
+        }
+    }
+
+    public Session restore(LoadedSession loaded, Manager manager) throws IOException {
+
+        try {
+            Session session = snapshots().restore(loaded, manager);
+            if (session != null) {
+                statistics.recordSize(((ClusterSession) session).getSerializedSize());
+            }
+            return session;
+        } catch (IOException e) {
+            statistics.recordError(SessionStatistics.OP_FIND);
+            throw e;
+        } catch (RuntimeException e) {
+            statistics.recordError(SessionStatistics.OP_FIND);
+            throw e;
+        }
+    }
+
+    private SnapshotRepository snapshots() {
+
+        if (!(delegate instanceof SnapshotRepository)) {
+            throw new UnsupportedOperationException(delegate.getClass().getName() + " does not support snapshot loads");
+        }
+        return (SnapshotRepository) delegate;
+    }
+
+    public void remove(Session session) {
+
+        long start = System.nanoTime();
+        try {
+            delegate.remove(session);
+        } catch (RuntimeException e) {
+            statistics.recordError(SessionStatistics.OP_REMOVE);
+            throw e;
+        } finally {
+            statistics.recordLatency(SessionStatistics.OP_REMOVE, System.nanoTime() - start);
+        }
+    }
+
+    public void expire(Session session, int seconds) {
+
+        long start = System.nanoTime();
+        try {
+            delegate.expire(session, seconds);
+        } catch (RuntimeException e) {
+            statistics.recordError(SessionStatistics.OP_EXPIRE);
+            throw e;
+        } finally {
+            statistics.recordLatency(SessionStatistics.OP_EXPIRE, System.nanoTime() - start);
+        }
+    }
+
+    public void close() {
+
+        delegate.close();
+    }
+}
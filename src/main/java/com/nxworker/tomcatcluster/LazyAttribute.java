@@ -0,0 +1,38 @@
+package com.nxworker.tomcatcluster;
+
+import java.io.IOException;
+
+/**
+ * 还没反序列化的属性值，留着存储里读出来的字节，第一次用到时才反序列化；
+ * 一直没用到的属性保存时直接写回原来的字节，不用再序列化
+ */
+public class LazyAttribute {
+
+    private final byte[]     data;
+    private final Serializer serializer;
+
+    /**
+     * @param data       序列化后的属性值
+     * @param serializer 能读这些字节的序列化
+     */
+    public LazyAttribute(byte[] data, Serializer serializer) {
+
+        this.data = data;
+        this.serializer = serializer;
+    }
+
+    public byte[] getData() {
+
+        return data;
+    }
+
+    public Serializer getSerializer() {
+
+        return serializer;
+    }
+
+    public Object deserialize() throws IOException, ClassNotFoundException {
+
+        return serializer.deserializeAttribute(data);
+    }
+}
@@ -0,0 +1,55 @@
+package com.nxworker.tomcatcluster;
+
+/**
+ * 从存储取回、还没反序列化的session数据
+ * <p>
+ * 同一份数据可以反序列化成多个session对象，合并读取时每个请求各用一个，互不影响；数据本身只读
+ */
+public class LoadedSession {
+
+    private final String id;
+
+    //string模式是整个值，hash模式是字段map
+    private final Object data;
+
+    //session剩余的过期秒数，小于0表示不过期
+    private final long ttl;
+
+    //读取时刷新了过期时间，引用的大属性要跟着刷新，只做一次
+    private boolean touched;
+
+    public LoadedSession(String id, Object data, long ttl, boolean touched) {
+
+        this.id = id;
+        this.data = data;
+        this.ttl = ttl;
+        this.touched = touched;
+    }
+
+    public String getId() {
+
+        return id;
+    }
+
+    public Object getData() {
+
+        return data;
+    }
+
+    public long getTtl() {
+
+        return ttl;
+    }
+
+    /**
+     * 第一次调用返回读取时有没有刷新过期时间，之后都返回false
+     *
+     * @return
+     */
+    public synchronized boolean takeTouched() {
+
+        boolean result = touched;
+        touched = false;
+        return result;
+    }
+}
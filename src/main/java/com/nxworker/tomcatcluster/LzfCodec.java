@@ -0,0 +1,162 @@
+package com.nxworker.tomcatcluster;
+
+import java.io.IOException;
+
+/**
+ * LZF压缩，LZ77的一种，压缩率比deflate低，但是压缩解压都快很多
+ * <p>
+ * 控制字节小于32表示后面跟(控制字节+1)个原样字节；否则高3位是匹配长度-2(等于7时下一个字节再加上)，
+ * 低5位和下一个字节组成回退距离-1
+ */
+public class LzfCodec {
+
+    private static final int HASH_LOG      = 14;
+    private static final int HASH_SIZE     = 1 << HASH_LOG;
+    private static final int MAX_LITERAL   = 32;
+    private static final int MAX_OFFSET    = 1 << 13;
+    private static final int MAX_MATCH_LEN = 264;
+
+    //哈希表每个线程一份，不清空直接复用：表里残留的旧位置会被下面的位置检查和字节比较排除掉
+    private static final ThreadLocal<int[]> TABLE = new ThreadLocal<int[]>() {
+
+        @Override
+        protected int[] initialValue() {
+
+            return new int[HASH_SIZE];
+        }
+    };
+
+    private LzfCodec() {
+
+    }
+
+    /**
+     * 压缩
+     *
+     * @param in     原始数据
+     * @param length 原始数据长度
+     * @param out    输出，至少要有 length + length / 32 + 2 个字节
+     * @param outPos 从这里开始写
+     * @return 写完后的位置
+     */
+    public static int compress(byte[] in, int length, byte[] out, int outPos) {
+
+        int[] table = TABLE.get();
+
+        int ip  = 0;
+        int op  = outPos + 1;
+        int lit = 0;
+
+        while (ip < length - 2) {
+            int hval = hash(in, ip);
+            int ref  = table[hval];
+            table[hval] = ip;
+
+            int off = ip - ref - 1;
+            if (ref < ip && off < MAX_OFFSET
+                    && in[ref] == in[ip] && in[ref + 1] == in[ip + 1] && in[ref + 2] == in[ip + 2]) {
+
+                int len    = 3;
+                int maxLen = Math.min(MAX_MATCH_LEN, length - ip);
+                while (len < maxLen && in[ref + len] == in[ip + len]) {
+                    len++;
+                }
+
+                //结束前面的原样字节段
+                if (lit > 0) {
+                    out[op - lit - 1] = (byte) (lit - 1);
+                } else {
+                    op--;
+                }
+                lit = 0;
+
+                int code = len - 2;
+                if (code < 7) {
+                    out[op++] = (byte) ((off >> 8) + (code << 5));
+                } else {
+                    out[op++] = (byte) ((off >> 8) + (7 << 5));
+                    out[op++] = (byte) (code - 7);
+                }
+                out[op++] = (byte) off;
+                op++;
+
+                ip += len;
+            } else {
+                out[op++] = in[ip++];
+                if (++lit == MAX_LITERAL) {
+                    out[op - lit - 1] = (byte) (lit - 1);
+                    lit = 0;
+                    op++;
+                }
+            }
+        }
+
+        while (ip < length) {
+            out[op++] = in[ip++];
+            if (++lit == MAX_LITERAL) {
+                out[op - lit - 1] = (byte) (lit - 1);
+                lit = 0;
+                op++;
+            }
+        }
+
+        if (lit > 0) {
+            out[op - lit - 1] = (byte) (lit - 1);
+        } else {
+            op--;
+        }
+        return op;
+    }
+
+    /**
+     * 解压
+     *
+     * @param in     压缩数据
+     * @param offset 压缩数据开始位置
+     * @param end    压缩数据结束位置
+     * @param out    输出，至少要有原始数据长度
+     * @param length 原始数据长度
+     * @throws IOException 数据损坏
+     */
+    public static void decompress(byte[] in, int offset, int end, byte[] out, int length) throws IOException {
+
+        int ip = offset;
+        int op = 0;
+        try {
+            while (ip < end) {
+                int ctrl = in[ip++] & 0xFF;
+                if (ctrl < MAX_LITERAL) {
+                    int n = ctrl + 1;
+                    System.arraycopy(in, ip, out, op, n);
+                    ip += n;
+                    op += n;
+                } else {
+                    int len = ctrl >> 5;
+                    if (len == 7) {
+                        len += in[ip++] & 0xFF;
+                    }
+                    len += 2;
+                    int ref = op - ((ctrl & 0x1F) << 8) - 1 - (in[ip++] & 0xFF);
+                    if (ref < 0) {
+                        throw new IOException("corrupt lzf data");
+                    }
+                    //可能和正在写的部分重叠，只能一个字节一个字节复制
+                    for (int i = 0 ; i < len ; i++) {
+                        out[op++] = out[ref++];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("corrupt lzf data");
+        }
+        if (op != length) {
+            throw new IOException("corrupt lzf data");
+        }
+    }
+
+    private static int hash(byte[] in, int p) {
+
+        int v = ((in[p] & 0xFF) << 16) | ((in[p + 1] & 0xFF) << 8) | (in[p + 2] & 0xFF);
+        return (v * 0x9E3779B1) >>> (32 - HASH_LOG);
+    }
+}
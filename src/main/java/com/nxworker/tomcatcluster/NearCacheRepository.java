@@ -0,0 +1,312 @@
+package com.nxworker.tomcatcluster;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisPubSub;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * 本地近端缓存
+ * <p>
+ * 包在其他存储外面，把最近用过的session留在本机内存里，按条数和估算的字节数限制大小，超出时按LRU淘汰。
+ * 本节点写或删session时通过redis的pub/sub发一条失效消息，其他节点收到后把自己缓存的旧session删掉
+ */
+public class NearCacheRepository implements SessionRepository {
+
+    private final Log log = LogFactory.getLog(NearCacheRepository.class);
+
+    //每个缓存条目除了序列化数据以外的估算开销
+    private static final int ENTRY_OVERHEAD = 1024;
+
+    //订阅断开后重连的间隔
+    private static final long RECONNECT_INTERVAL = 1000;
+
+    //失效计数按id分组的组数
+    private static final int INVALIDATION_STRIPES = 256;
+
+    private static class Entry {
+
+        private final ClusterSession session;
+        private final int            size;
+        private final long           cachedTime;
+
+        private Entry(ClusterSession session, int size) {
+
+            this.session = session;
+            this.size = size;
+            this.cachedTime = System.currentTimeMillis();
+        }
+    }
+
+    private final SessionRepository delegate;
+    private final int               maxEntries;
+    private final long              maxBytes;
+    private final long              ttlMillis;
+    private final String            channel;
+
+    //本节点标识，收到自己发的失效消息时不用处理
+    private final String nodeId = IdGenerator.getUUIDString();
+
+    //accessOrder为true的LinkedHashMap，迭代顺序就是LRU顺序
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private       long                         bytes = 0;
+
+    //每次失效加一，在cache上同步。从存储读之前记下，读完放进缓存时变了说明读的过程中收到过失效消息，读到的可能是旧的
+    private final long[] invalidations = new long[INVALIDATION_STRIPES];
+
+    private final JedisPool connectionPool;
+    private final Thread    subscriberThread;
+
+    private volatile boolean     running = true;
+    private volatile JedisPubSub subscriber;
+
+    public NearCacheRepository(SessionRepository delegate, String host, int port, int timeout, String password,
+                               int maxEntries, long maxBytes, long ttlMillis, String channel) {
+
+        this.delegate = delegate;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.channel = channel;
+
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(50);
+        config.setMaxIdle(10);
+        config.setTestOnBorrow(true);
+        //和存储用同一个redis，要密码时一样认证，否则订阅和发消息都会失败
+        this.connectionPool = new JedisPool(config, host, port, timeout,
+                password == null || password.length() == 0 ? null : password);
+
+        this.subscriberThread = new Thread(new Runnable() {
+
+            public void run() {
+
+                subscribe();
+            }
+        }, "ClusterSession-NearCacheInvalidator");
+        this.subscriberThread.setDaemon(true);
+        this.subscriberThread.start();
+    }
+
+    /**
+     * 一直订阅失效频道，连接断了就清空缓存再重连，断开期间可能漏掉了消息
+     */
+    private void subscribe() {
+
+        while (running) {
+            Jedis jedis = null;
+            try {
+                jedis = connectionPool.getResource();
+                subscriber = new JedisPubSub() {
+
+                    @Override
+                    public void onMessage(String channel, String message) {
+
+                        int split = message.indexOf(' ');
+                        if (split < 0 || message.substring(0, split).equals(nodeId)) {
+                            return;
+                        }
+                        evict(message.substring(split + 1));
+                    }
+                };
+                jedis.subscribe(subscriber, channel);
+            } catch (Exception e) {
+                if (running) {
+                    log.warn("近端缓存失效订阅断开，清空本地缓存", e);
+                }
+            } finally {
+                if (jedis != null) {
+                    jedis.close();
+                }
+            }
+
+            clear();
+            if (running) {
+                try {
+                    Thread.sleep(RECONNECT_INTERVAL);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void publish(String id) {
+
+        Jedis jedis = null;
+        try {
+            jedis = connectionPool.getResource();
+            jedis.publish(channel, nodeId + " " + id);
+        } catch (Exception e) {
+            log.error("发送session失效消息失败:" + id, e);
+        } finally {
+            if (jedis != null) {
+                jedis.close();
+            }
+        }
+    }
+
+    private static int stripe(String id) {
+
+        return (id.hashCode() & Integer.MAX_VALUE) % INVALIDATION_STRIPES;
+    }
+
+    /**
+     * 当前的失效计数，从存储读或写之前调用
+     *
+     * @param id
+     * @return
+     */
+    private long invalidationStamp(String id) {
+
+        synchronized (cache) {
+            return invalidations[stripe(id)];
+        }
+    }
+
+    /**
+     * 放进缓存，stamp之后又失效过的不放
+     *
+     * @param session
+     * @param stamp   读存储之前取的失效计数
+     */
+    private void put(ClusterSession session, long stamp) {
+
+        String id   = session.getIdInternal();
+        int    size = session.getSerializedSize() + ENTRY_OVERHEAD;
+        synchronized (cache) {
+            //单个就超过上限的不缓存
+            if (size > maxBytes || invalidations[stripe(id)] != stamp) {
+                Entry stale = cache.remove(id);
+                if (stale != null) {
+                    bytes -= stale.size;
+                }
+                return;
+            }
+            Entry old = cache.put(id, new Entry(session, size));
+            if (old != null) {
+                bytes -= old.size;
+            }
+            bytes += size;
+
+            Iterator<Entry> it = cache.values().iterator();
+            while ((cache.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+                Entry eldest = it.next();
+                it.remove();
+                bytes -= eldest.size;
+            }
+        }
+    }
+
+    private ClusterSession get(String id, Manager manager) {
+
+        synchronized (cache) {
+            Entry entry = cache.get(id);
+            if (entry == null) {
+                return null;
+            }
+            //超过缓存时间或者本地记录已经超时的都重新到存储里面取，这里不能调isValid，会把别的节点还在用的session删掉
+            long now         = System.currentTimeMillis();
+            int  maxInactive = entry.session.getMaxInactiveInterval();
+            if (entry.session.getManager() != manager
+                    || now - entry.cachedTime > ttlMillis
+                    || (maxInactive > 0 && now - entry.session.getThisAccessedTimeInternal() > maxInactive * 1000L)) {
+                cache.remove(id);
+                bytes -= entry.size;
+                return null;
+            }
+            return entry.session;
+        }
+    }
+
+    private void evict(String id) {
+
+        synchronized (cache) {
+            invalidations[stripe(id)]++;
+            Entry entry = cache.remove(id);
+            if (entry != null) {
+                bytes -= entry.size;
+            }
+        }
+    }
+
+    private void clear() {
+
+        synchronized (cache) {
+            cache.clear();
+            bytes = 0;
+            //订阅断开期间可能漏了消息，正在读的也不能放进来
+            for (int i = 0 ; i < invalidations.length ; i++) {
+                invalidations[i]++;
+            }
+        }
+    }
+
+    public boolean save(Session session) {
+
+        long    stamp   = invalidationStamp(session.getIdInternal());
+        boolean written = delegate.save(session);
+        put((ClusterSession) session, stamp);
+        if (written) {
+            publish(session.getIdInternal());
+        }
+        return written;
+    }
+
+    public Session find(String id, Manager manager) throws IOException {
+
+        ClusterSession session = get(id, manager);
+        if (session != null) {
+            log.trace("Session " + id + " found in near cache");
+            return session;
+        }
+
+        long    stamp = invalidationStamp(id);
+        Session found = delegate.find(id, manager);
+        if (found != null) {
+            put((ClusterSession) found, stamp);
+        }
+        return found;
+    }
+
+    public void remove(Session session) {
+
+        delegate.remove(session);
+        evict(session.getIdInternal());
+        publish(session.getIdInternal());
+    }
+
+    public void expire(Session session, int seconds) {
+
+        delegate.expire(session, seconds);
+    }
+
+    public void close() {
+
+        running = false;
+        JedisPubSub current = subscriber;
+        if (current != null && current.isSubscribed()) {
+            try {
+                current.unsubscribe();
+            } catch (Exception e) {
+                log.error(e);
+            }
+        }
+        subscriberThread.interrupt();
+        clear();
+        try {
+            connectionPool.destroy();
+        } catch (Exception e) {
+            log.error(e);
+        }
+        delegate.close();
+    }
+}
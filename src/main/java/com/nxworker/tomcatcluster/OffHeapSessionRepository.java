@@ -0,0 +1,357 @@
+package com.nxworker.tomcatcluster;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 进程内的session存储，序列化后的session放在堆外内存里
+ * <p>
+ * 给单节点部署、不连redis的集成测试和性能基准用。session和redis模式一样每次请求反序列化一份，
+ * 数据放在OffHeapStore的块里，堆上每个session只有一个很小的索引项，几百万个session也不会让GC停顿变长。
+ * 过期用分层时间轮，访问时只改过期时刻不动时间轮；manager的backgroundProcess推进时间轮，
+ * 到期的session读出来触发监听后删掉。过期了还没被清掉的读不到
+ */
+public class OffHeapSessionRepository implements SessionRepository {
+
+    private final Log log = LogFactory.getLog(OffHeapSessionRepository.class);
+
+    public static final long DEFAULT_MAX_BYTES  = 256L * 1024 * 1024;
+    public static final int  DEFAULT_BLOCK_SIZE = 128;
+
+    //每次向操作系统申请的堆外内存
+    private static final int SLAB_BYTES = 8 * 1024 * 1024;
+
+    //锁的个数，同一个session的读写和释放在同一把锁里，块不会在读的时候被释放
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * 索引项，记着数据在哪些块里和过期时刻
+     */
+    static class Entry extends TimingWheel.Timer {
+
+        final String id;
+        int          firstBlock;
+        int          length;
+        long         touchedTime;
+
+        Entry(String id) {
+
+            this.id = id;
+        }
+    }
+
+    private final Serializer                   serializer;
+    private final OffHeapStore                 store;
+    private final TimingWheel                  wheel;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final Object[]                     locks   = new Object[LOCK_STRIPES];
+
+    protected SavePolicy savePolicy = SavePolicy.DIRTY_ONLY;
+
+    public OffHeapSessionRepository(Serializer serializer) {
+
+        this(serializer, DEFAULT_MAX_BYTES, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param serializer
+     * @param maxBytes   最多用多少堆外内存，满了保存失败
+     * @param blockSize  块大小，一个session最多浪费不到一块
+     */
+    public OffHeapSessionRepository(Serializer serializer, long maxBytes, int blockSize) {
+
+        this.serializer = serializer;
+        this.store = new OffHeapStore(maxBytes, SLAB_BYTES, blockSize);
+        //第0层一秒一格，四层64格能排到两百多天
+        this.wheel = new TimingWheel(1000, 64, 4, System.currentTimeMillis());
+        for (int i = 0 ; i < locks.length ; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public void setSavePolicy(SavePolicy savePolicy) {
+
+        this.savePolicy = savePolicy;
+    }
+
+    private Object lockFor(String id) {
+
+        return locks[(id.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
+    private static long deadline(long now, int ttl) {
+
+        return ttl > 0 ? now + ttl * 1000L : Long.MAX_VALUE;
+    }
+
+    /**
+     * 保存session
+     *
+     * @param session
+     * @return 内容没变化跳过写入时返回false
+     * @throws SessionSaveException 堆外内存满了或者序列化失败，session已经整个标记为脏数据
+     */
+    public boolean save(Session session) {
+
+        ClusterSession clusterSession = (ClusterSession) session;
+        boolean        written        = false;
+        try {
+            synchronized (clusterSession) {
+                clusterSession.resetDirtyTracking();
+            }
+            byte[] data   = serializer.serializeFrom(clusterSession);
+            long   digest = 0;
+            if (savePolicy == SavePolicy.CONTENT_HASH) {
+                digest = serializer.contentDigest(data, clusterSession);
+                if (clusterSession.isPersisted() && digest == clusterSession.getContentDigest()) {
+                    log.trace("Session " + clusterSession.getId() + " unchanged, skip saving");
+                    written = true;
+                    return false;
+                }
+            }
+
+            String id  = clusterSession.getId();
+            long   now = System.currentTimeMillis();
+            int    ttl = clusterSession.getMaxInactiveInterval();
+            //先写好新的块，锁里只换引用
+            int first = store.write(data, data.length);
+            if (first < 0) {
+                log.error("堆外session存储已满，session " + id + "没有保存");
+                throw new SessionSaveException("off-heap session store is full, session " + id + " not saved");
+            }
+            int  oldFirst = -1;
+            long deadline = deadline(now, ttl);
+            synchronized (lockFor(id)) {
+                Entry entry = entries.get(id);
+                if (entry == null) {
+                    entry = new Entry(id);
+                    entries.put(id, entry);
+                } else {
+                    oldFirst = entry.firstBlock;
+                }
+                entry.firstBlock = first;
+                entry.length = data.length;
+                entry.touchedTime = now;
+                reschedule(entry, deadline);
+            }
+            if (oldFirst >= 0) {
+                store.free(oldFirst);
+            }
+            written = true;
+
+            //写成功以后再记摘要，写失败时下次保存不会被当成没变化跳过
+            if (savePolicy == SavePolicy.CONTENT_HASH) {
+                clusterSession.setContentDigest(digest);
+            }
+            clusterSession.setPersisted(true);
+            clusterSession.setSerializedSize(data.length);
+            clusterSession.setLastTouchedTime(now);
+            return true;
+        } catch (SessionSaveException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("保存session失败", e);
+            throw new SessionSaveException("error saving session " + clusterSession.getId(), e);
+        } finally {
+            if (!written) {
+                //修改记录已经清掉了，下次保存时整个重写
+                clusterSession.markFullyDirty();
+            }
+        }
+    }
+
+    public Session find(String id, Manager manager) throws IOException {
+
+        return load(id, manager, true);
+    }
+
+    /**
+     * 读session但不刷新过期时间，列出session时用
+     *
+     * @param id
+     * @param manager
+     * @return
+     * @throws IOException
+     */
+    public Session peek(String id, Manager manager) throws IOException {
+
+        return load(id, manager, false);
+    }
+
+    private Session load(String id, Manager manager, boolean touch) throws IOException {
+
+        byte[] data;
+        long   touchedTime;
+        synchronized (lockFor(id)) {
+            Entry entry = entries.get(id);
+            long  now   = System.currentTimeMillis();
+            if (entry == null || entry.getDeadline() <= now) {
+                //过期的等时间轮转到时触发监听后再删
+                return null;
+            }
+            data = store.read(entry.firstBlock, entry.length);
+            if (touch) {
+                reschedule(entry, deadline(now, manager.getMaxInactiveInterval()));
+                entry.touchedTime = now;
+            }
+            touchedTime = entry.touchedTime;
+        }
+        try {
+            return deserialize(id, data, manager, touchedTime);
+        } catch (ClassNotFoundException e) {
+            log.error("find session失败", e);
+            throw new IOException("error deserializing session " + id);
+        }
+    }
+
+    private ClusterSession deserialize(String id, byte[] data, Manager manager, long touchedTime)
+            throws IOException, ClassNotFoundException {
+
+        ClusterSession session = (ClusterSession) manager.createEmptySession();
+        serializer.deserializeInto(data, session);
+        session.setId(id);
+        session.setNew(false);
+        session.setMaxInactiveInterval(manager.getMaxInactiveInterval());
+        session.access();
+        session.setValid(true);
+        session.resetDirtyTracking();
+        session.setPersisted(true);
+        session.setSerializedSize(data.length);
+        session.setLastTouchedTime(touchedTime);
+        if (savePolicy == SavePolicy.CONTENT_HASH) {
+            session.setContentDigest(serializer.contentDigest(data, session));
+        }
+        return session;
+    }
+
+    public void remove(Session session) {
+
+        String id = session.getIdInternal();
+        synchronized (lockFor(id)) {
+            Entry entry = entries.remove(id);
+            if (entry == null) {
+                return;
+            }
+            wheel.cancel(entry);
+            store.free(entry.firstBlock);
+        }
+    }
+
+    public void expire(Session session, int seconds) {
+
+        String id  = session.getIdInternal();
+        long   now = System.currentTimeMillis();
+        synchronized (lockFor(id)) {
+            Entry entry = entries.get(id);
+            if (entry != null) {
+                reschedule(entry, deadline(now, seconds));
+                entry.touchedTime = now;
+            }
+        }
+    }
+
+    /**
+     * 改过期时刻，往后推的不动时间轮，转到时再重新放；往前提的要马上重新放
+     *
+     * @param entry
+     * @param deadline
+     */
+    private void reschedule(Entry entry, long deadline) {
+
+        boolean earlier = deadline < entry.getDeadline();
+        entry.setDeadline(deadline);
+        if (earlier || !entry.isScheduled()) {
+            wheel.schedule(entry);
+        }
+    }
+
+    /**
+     * 推进时间轮，到期的session读出来删掉后调用expire触发监听。manager的backgroundProcess里调用
+     *
+     * @param manager
+     * @return 过期的session数
+     */
+    public int processExpires(Manager manager) {
+
+        long now     = System.currentTimeMillis();
+        int  expired = 0;
+        for (TimingWheel.Timer timer : wheel.advance(now)) {
+            Entry  entry = (Entry) timer;
+            byte[] data;
+            long   touchedTime;
+            synchronized (lockFor(entry.id)) {
+                if (entries.get(entry.id) != entry) {
+                    continue;
+                }
+                if (entry.getDeadline() > now) {
+                    //取出来之后刚好被访问过
+                    wheel.schedule(entry);
+                    continue;
+                }
+                entries.remove(entry.id);
+                data = store.read(entry.firstBlock, entry.length);
+                touchedTime = entry.touchedTime;
+                store.free(entry.firstBlock);
+            }
+            expired++;
+            try {
+                ClusterSession session = deserialize(entry.id, data, manager, touchedTime);
+                session.expire();
+            } catch (Exception e) {
+                //读不出来的只能直接删掉，不触发监听
+                log.warn("过期session " + entry.id + "处理失败: " + e.getMessage());
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * 列出session id，顺序不固定
+     *
+     * @param limit 最多列出多少个
+     * @return
+     */
+    public List<String> listSessionIds(int limit) {
+
+        List<String> ids = new ArrayList<String>(Math.min(limit, entries.size()));
+        long         now = System.currentTimeMillis();
+        for (Entry entry : entries.values()) {
+            if (ids.size() >= limit) {
+                break;
+            }
+            if (entry.getDeadline() > now) {
+                ids.add(entry.id);
+            }
+        }
+        return ids;
+    }
+
+    public int size() {
+
+        return entries.size();
+    }
+
+    public long getUsedBytes() {
+
+        return store.getUsedBytes();
+    }
+
+    public long getReservedBytes() {
+
+        return store.getReservedBytes();
+    }
+
+    public void close() {
+
+        //堆外内存跟着ByteBuffer被回收时释放
+        entries.clear();
+    }
+}
@@ -0,0 +1,186 @@
+package com.nxworker.tomcatcluster;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 堆外的块存储
+ * <p>
+ * 内存按slab从操作系统申请(direct ByteBuffer)，每个slab切成固定大小的块，一个值占一串块，
+ * 每块开头4个字节是下一块的编号，-1表示最后一块。块用完放回空闲栈，不会有碎片，
+ * 一个值最多浪费不到一块。堆上只有slab对象和空闲块编号的int数组，值再多GC也不用扫描它们。
+ * <p>
+ * 分配和释放要加锁；读写一串块不加锁，由调用方保证同一串块不会同时被读和释放
+ */
+public class OffHeapStore {
+
+    private static final int LINK_BYTES = 4;
+    private static final int END        = -1;
+
+    private final int  blockSize;
+    private final int  blocksPerSlab;
+    private final long maxBlocks;
+
+    //只在分配时加锁换成更长的数组，读写定位块时不加锁
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+    //已经切出来过的块数，编号比它小的块要么在用要么在空闲栈里
+    private int carved;
+
+    private int[] free = new int[1024];
+    private int   freeCount;
+
+    /**
+     * @param maxBytes  最多申请的堆外内存
+     * @param slabBytes 每次申请的大小
+     * @param blockSize 块大小
+     */
+    public OffHeapStore(long maxBytes, int slabBytes, int blockSize) {
+
+        if (blockSize <= LINK_BYTES) {
+            throw new IllegalArgumentException("block size must be larger than " + LINK_BYTES);
+        }
+        this.blockSize = blockSize;
+        this.blocksPerSlab = Math.max(1, slabBytes / blockSize);
+        this.maxBlocks = Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / blockSize));
+    }
+
+    /**
+     * 存一个值需要的块数
+     *
+     * @param length
+     * @return
+     */
+    public int blocksFor(int length) {
+
+        int payload = blockSize - LINK_BYTES;
+        return Math.max(1, (length + payload - 1) / payload);
+    }
+
+    /**
+     * 写入一个值
+     *
+     * @param data
+     * @param length
+     * @return 第一块的编号，内存不够时返回-1
+     */
+    public int write(byte[] data, int length) {
+
+        int[] blocks = allocate(blocksFor(length));
+        if (blocks == null) {
+            return END;
+        }
+        int payload = blockSize - LINK_BYTES;
+        int offset  = 0;
+        for (int i = 0 ; i < blocks.length ; i++) {
+            ByteBuffer buffer = locate(blocks[i]);
+            int        n      = Math.min(payload, length - offset);
+            buffer.putInt(i + 1 < blocks.length ? blocks[i + 1] : END);
+            buffer.put(data, offset, n);
+            offset += n;
+        }
+        return blocks[0];
+    }
+
+    /**
+     * 读出一个值
+     *
+     * @param first  第一块的编号
+     * @param length 值的长度
+     * @return
+     */
+    public byte[] read(int first, int length) {
+
+        byte[] data    = new byte[length];
+        int    payload = blockSize - LINK_BYTES;
+        int    offset  = 0;
+        int    block   = first;
+        while (block != END && offset < length) {
+            ByteBuffer buffer = locate(block);
+            int        n      = Math.min(payload, length - offset);
+            block = buffer.getInt();
+            buffer.get(data, offset, n);
+            offset += n;
+        }
+        return data;
+    }
+
+    /**
+     * 释放一串块
+     *
+     * @param first 第一块的编号
+     */
+    public void free(int first) {
+
+        int block = first;
+        while (block != END) {
+            int next = locate(block).getInt();
+            release(block);
+            block = next;
+        }
+    }
+
+    /**
+     * 已经申请的堆外内存字节数
+     *
+     * @return
+     */
+    public synchronized long getReservedBytes() {
+
+        return (long) slabs.length * blocksPerSlab * blockSize;
+    }
+
+    /**
+     * 正在用的字节数，按块算
+     *
+     * @return
+     */
+    public synchronized long getUsedBytes() {
+
+        return (long) (carved - freeCount) * blockSize;
+    }
+
+    private synchronized int[] allocate(int count) {
+
+        if ((long) carved - freeCount + count > maxBlocks) {
+            return null;
+        }
+        int[] blocks = new int[count];
+        for (int i = 0 ; i < count ; i++) {
+            if (freeCount > 0) {
+                blocks[i] = free[--freeCount];
+                continue;
+            }
+            if (carved == slabs.length * blocksPerSlab) {
+                ByteBuffer[] grown = new ByteBuffer[slabs.length + 1];
+                System.arraycopy(slabs, 0, grown, 0, slabs.length);
+                grown[slabs.length] = ByteBuffer.allocateDirect(blocksPerSlab * blockSize);
+                slabs = grown;
+            }
+            blocks[i] = carved++;
+        }
+        return blocks;
+    }
+
+    private synchronized void release(int block) {
+
+        if (freeCount == free.length) {
+            int[] grown = new int[free.length * 2];
+            System.arraycopy(free, 0, grown, 0, freeCount);
+            free = grown;
+        }
+        free[freeCount++] = block;
+    }
+
+    /**
+     * 定位到一块的开头，返回的是独立的视图，不同线程读写不同的块互不影响
+     *
+     * @param block
+     * @return
+     */
+    private ByteBuffer locate(int block) {
+
+        ByteBuffer view = slabs[block / blocksPerSlab].duplicate();
+        view.position((block % blocksPerSlab) * blockSize);
+        return view;
+    }
+}
@@ -0,0 +1,58 @@
+package com.nxworker.tomcatcluster;
+
+import java.io.IOException;
+
+/**
+ * 单独存放的大属性，session里只有按内容摘要生成的key，第一次用到时才去读；
+ * 内容没变时保存session只写key，不用再写属性本身
+ */
+public class OffloadedAttribute extends LazyAttribute {
+
+    private final String    key;
+    private final int       length;
+    private final BlobStore store;
+
+    //刚保存时还留着原来的对象，不用再去读
+    private final Object value;
+
+    /**
+     * @param key    属性值存放的key
+     * @param length 属性值序列化后的长度
+     * @param store  读属性值用的存储
+     * @param value  已经有的属性值，没有为null
+     */
+    public OffloadedAttribute(String key, int length, BlobStore store, Object value) {
+
+        super(null, null);
+        this.key = key;
+        this.length = length;
+        this.store = store;
+        this.value = value;
+    }
+
+    public String getKey() {
+
+        return key;
+    }
+
+    public int getLength() {
+
+        return length;
+    }
+
+    @Override
+    public Object deserialize() throws IOException, ClassNotFoundException {
+
+        if (value != null) {
+            return value;
+        }
+        if (store == null) {
+            throw new IOException("no blob store to load offloaded attribute " + key);
+        }
+        Object loaded = store.loadBlob(key);
+        if (loaded == null) {
+            throw new IOException("offloaded attribute " + key + " not found");
+        }
+        return loaded;
+    }
+}
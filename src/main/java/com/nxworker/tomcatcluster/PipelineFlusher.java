@@ -0,0 +1,289 @@
+package com.nxworker.tomcatcluster;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 后台批量写入器
+ * <p>
+ * 各个请求线程把序列化好的session放进来，后台线程攒够maxBatchSize个或者等了maxLingerMillis毫秒之后，
+ * 用一次pipeline写到redis。同一个session在写入之前又有新的修改，只保留最后一次
+ */
+public class PipelineFlusher implements Runnable {
+
+    private final Log log = LogFactory.getLog(PipelineFlusher.class);
+
+    /**
+     * 一次待写入操作，data为null表示删除，expire为true表示只刷新过期时间
+     */
+    public static class PendingWrite {
+
+        private final String  id;
+        private final byte[]  data;
+        private final int     ttl;
+        private final boolean expire;
+
+        public PendingWrite(String id, byte[] data, int ttl) {
+
+            this(id, data, ttl, false);
+        }
+
+        private PendingWrite(String id, byte[] data, int ttl, boolean expire) {
+
+            this.id = id;
+            this.data = data;
+            this.ttl = ttl;
+            this.expire = expire;
+        }
+
+        public static PendingWrite expire(String id, int ttl) {
+
+            return new PendingWrite(id, null, ttl, true);
+        }
+
+        public String getId() {
+
+            return id;
+        }
+
+        public byte[] getData() {
+
+            return data;
+        }
+
+        public int getTtl() {
+
+            return ttl;
+        }
+
+        public boolean isRemove() {
+
+            return data == null && !expire;
+        }
+
+        public boolean isExpire() {
+
+            return expire;
+        }
+    }
+
+    private final RedisRepository repository;
+    private final int             maxBatchSize;
+    private final long            maxLingerMillis;
+
+    //待写入的操作，按id合并
+    private final LinkedHashMap<String, PendingWrite> pending = new LinkedHashMap<String, PendingWrite>();
+
+    //正在写入的一批，写完之前读也要能看到
+    private Map<String, PendingWrite> inFlight = new LinkedHashMap<String, PendingWrite>();
+
+    //第一个待写入操作进来的时间
+    private long firstPendingTime;
+
+    //写入失败后重试的间隔
+    private static final long RETRY_INTERVAL = 1000;
+
+    private volatile boolean running = true;
+    private          Thread  thread;
+
+    public PipelineFlusher(RedisRepository repository, int maxBatchSize, long maxLingerMillis) {
+
+        this.repository = repository;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxLingerMillis = Math.max(0, maxLingerMillis);
+    }
+
+    public void start() {
+
+        thread = new Thread(this, "ClusterSession-PipelineFlusher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 放入待写入队列
+     *
+     * @param write
+     */
+    public void enqueue(PendingWrite write) {
+
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                firstPendingTime = System.currentTimeMillis();
+                //后台线程在等第一个写入，叫醒它开始计算等待时间
+                pending.notifyAll();
+            }
+            //已经有写入或删除排着的，那次写入本身就会设置过期时间，不用再刷新
+            PendingWrite existing = pending.get(write.getId());
+            if (write.isExpire() && existing != null && !existing.isExpire()) {
+                return;
+            }
+            //先删掉再放进去，保证写入顺序按最后一次修改算
+            pending.remove(write.getId());
+            pending.put(write.getId(), write);
+            if (pending.size() >= maxBatchSize) {
+                pending.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 查找还没写到redis的操作，保证本节点能读到自己刚写的数据
+     *
+     * @param id
+     * @return
+     */
+    public PendingWrite findPending(String id) {
+
+        synchronized (pending) {
+            //只刷新过期时间的不算，数据还要到redis或者正在写的那批里找
+            PendingWrite write = pending.get(id);
+            if (write == null || write.isExpire()) {
+                write = inFlight.get(id);
+            }
+            return write != null && !write.isExpire() ? write : null;
+        }
+    }
+
+    public void run() {
+
+        while (running) {
+            List<PendingWrite> batch;
+            try {
+                batch = takeBatch();
+            } catch (InterruptedException e) {
+                break;
+            }
+            write(batch);
+        }
+
+        //停止的时候把剩下的都写掉
+        List<PendingWrite> rest;
+        while (!(rest = drain()).isEmpty()) {
+            write(rest);
+        }
+    }
+
+    /**
+     * 等到攒够一批或者超过等待时间
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    private List<PendingWrite> takeBatch() throws InterruptedException {
+
+        synchronized (pending) {
+            while (running) {
+                if (pending.isEmpty()) {
+                    pending.wait();
+                    continue;
+                }
+                long waitMillis = firstPendingTime + maxLingerMillis - System.currentTimeMillis();
+                if (pending.size() >= maxBatchSize || waitMillis <= 0) {
+                    break;
+                }
+                pending.wait(waitMillis);
+            }
+            return drain();
+        }
+    }
+
+    private List<PendingWrite> drain() {
+
+        synchronized (pending) {
+            List<PendingWrite>     batch = new ArrayList<PendingWrite>(Math.min(pending.size(), maxBatchSize));
+            Iterator<PendingWrite> it    = pending.values().iterator();
+            while (it.hasNext() && batch.size() < maxBatchSize) {
+                batch.add(it.next());
+                it.remove();
+            }
+            firstPendingTime = System.currentTimeMillis();
+            inFlight = new LinkedHashMap<String, PendingWrite>();
+            for (PendingWrite write : batch) {
+                inFlight.put(write.getId(), write);
+            }
+            return batch;
+        }
+    }
+
+    private void write(List<PendingWrite> batch) {
+
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            repository.writeBatch(batch);
+        } catch (Exception e) {
+            log.error("批量写入session失败,数量:" + batch.size(), e);
+            repository.recordError(SessionStatistics.OP_SAVE);
+            requeue(batch);
+            if (running) {
+                try {
+                    Thread.sleep(RETRY_INTERVAL);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } finally {
+            synchronized (pending) {
+                inFlight.clear();
+            }
+        }
+    }
+
+    /**
+     * 写失败的重新放回去，已经有更新的就不用放了
+     *
+     * @param batch
+     */
+    private void requeue(List<PendingWrite> batch) {
+
+        if (!running) {
+            return;
+        }
+        synchronized (pending) {
+            Map<String, PendingWrite> newer = new LinkedHashMap<String, PendingWrite>(pending);
+            pending.clear();
+            for (PendingWrite write : batch) {
+                pending.put(write.getId(), write);
+            }
+            for (PendingWrite write : newer.values()) {
+                PendingWrite failed = pending.get(write.getId());
+                if (write.isExpire() && failed != null && !failed.isExpire()) {
+                    //和enqueue一样，只刷新过期时间的不能盖掉没写成功的写入或删除；写入的过期时间用新的
+                    if (!failed.isRemove()) {
+                        pending.put(write.getId(), new PendingWrite(write.getId(), failed.getData(), write.getTtl()));
+                    }
+                    continue;
+                }
+                pending.remove(write.getId());
+                pending.put(write.getId(), write);
+            }
+            firstPendingTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 停止后台线程，剩下的写完再返回
+     */
+    public void stop() {
+
+        running = false;
+        synchronized (pending) {
+            pending.notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package com.nxworker.tomcatcluster;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 基于redis hash的session存储
+ * <p>
+ * 每个session是一个hash，每个属性一个字段，另外几个字段存创建时间、最后访问时间、principal。
+ * 保存的时候只写修改过的属性(HSET)，删除的属性用HDEL，没修改的大对象不用每次都写
+ */
+public class RedisHashRepository extends RedisRepository {
+
+    private final Log log = LogFactory.getLog(RedisHashRepository.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //属性字段前缀，和元数据字段分开
+    protected static final String ATTRIBUTE_PREFIX = "a:";
+
+    protected static final String CREATION_TIME         = "m:creationTime";
+    protected static final String LAST_ACCESSED_TIME    = "m:lastAccessedTime";
+    protected static final String MAX_INACTIVE_INTERVAL = "m:maxInactiveInterval";
+    protected static final String PRINCIPAL             = "m:principal";
+
+    //读取所有字段和剩余过期时间，和string模式的一样，宽限期里的当作不存在，快到刷新时间的顺便刷新，有KEYS[2]时一起更新索引
+    private static final RedisScript LOAD_AND_TOUCH = new RedisScript("local fields = redis.call('HGETALL', KEYS[1])\n"
+            + "if #fields == 0 then return nil end\n"
+            + "local ttl = redis.call('TTL', KEYS[1])\n"
+            + "if ttl >= 0 and ttl < tonumber(ARGV[3]) then return nil end\n"
+            + "if ttl >= 0 and ttl <= tonumber(ARGV[2]) then\n"
+            + "  redis.call('EXPIRE', KEYS[1], ARGV[1])\n"
+            + "  if KEYS[2] then redis.call('ZADD', KEYS[2], ARGV[4], ARGV[5]) end\n"
+            + "  ttl = tonumber(ARGV[1])\n"
+            + "end\n"
+            + "return {fields, ttl}");
+
+    //属性用到时才反序列化
+    private boolean lazyAttributes = false;
+
+    public RedisHashRepository(Serializer serializer, String host, int port, int timeout, String password, int database) {
+
+        super(serializer, host, port, timeout, password, database);
+    }
+
+    public RedisHashRepository(Serializer serializer, List<String> endpoints, int virtualNodes, int timeout, String password, int database) {
+
+        super(serializer, endpoints, virtualNodes, timeout, password, database);
+    }
+
+    public void setLazyAttributes(boolean lazyAttributes) {
+
+        this.lazyAttributes = lazyAttributes;
+    }
+
+    protected static byte[] attributeField(String name) {
+
+        return field(ATTRIBUTE_PREFIX + name);
+    }
+
+    protected static byte[] field(String name) {
+
+        return name.getBytes(UTF8);
+    }
+
+    /**
+     * 保存session，没存过、被整体标记为脏数据或者ALWAYS策略时整个重写，否则只写修改的字段。
+     * 每个属性记下序列化后的摘要，序列化结果和存储里一样的字段不用写；
+     * CONTENT_HASH策略下所有属性都重新序列化比较，属性对象被直接修改也能发现
+     *
+     * @param session
+     * @return 内容没变化跳过写入时返回false
+     * @throws SessionSaveException 写入失败，包括事务里的命令执行出错
+     */
+    @Override
+    public boolean save(Session session) {
+
+        Jedis          jedis        = null;
+        ClusterSession redisSession = (ClusterSession) session;
+        boolean        written      = false;
+
+        try {
+            byte[] binaryId = key(redisSession.getId());
+
+            //修改记录取一份快照再重置，之后别的请求做的修改留到下次保存
+            boolean            full;
+            Collection<String> changed;
+            Collection<String> removedNames;
+            synchronized (redisSession) {
+                full = !redisSession.isPersisted() || redisSession.isFullyDirty()
+                        || savePolicy == SavePolicy.ALWAYS;
+                changed = new ArrayList<String>(redisSession.getChangedAttributes().keySet());
+                removedNames = new ArrayList<String>(redisSession.getRemovedAttributes());
+                redisSession.resetDirtyTracking();
+            }
+
+            //摘要、persisted这些状态等redis写成功以后再记，写失败时session还和存储里的对得上
+            Map<byte[], byte[]> fields     = new HashMap<byte[], byte[]>();
+            Map<String, Long>   digests    = redisSession.getAttributeDigests();
+            Map<String, Long>   newDigests = new HashMap<String, Long>();
+            Collection<String>  names;
+            if (full || savePolicy == SavePolicy.CONTENT_HASH) {
+                names = Collections.list(redisSession.getAttributeNames());
+            } else {
+                names = changed;
+            }
+
+            for (String name : names) {
+                //没用到过的属性直接用读进来的字节，否则取当前值，可能在标记之后又被改过
+                byte[] data = redisSession.getRawAttribute(name, serializer);
+                if (data == null) {
+                    Object value = redisSession.getAttribute(name);
+                    if (value == null) {
+                        continue;
+                    }
+                    data = serializer.serializeAttribute(value);
+                }
+                Long digest = ContentDigest.hash64(data);
+                if (full || !digest.equals(digests.get(name))) {
+                    fields.put(attributeField(name), data);
+                }
+                newDigests.put(name, digest);
+            }
+
+            byte[][] removed = new byte[removedNames.size()][];
+            int      i       = 0;
+            for (String name : removedNames) {
+                removed[i++] = attributeField(name);
+            }
+
+            if (!full && fields.isEmpty() && removed.length == 0) {
+                log.trace("Session " + session + " unchanged, skip saving");
+                written = true;
+                return false;
+            }
+
+            fields.put(field(LAST_ACCESSED_TIME), String.valueOf(redisSession.getLastAccessedTimeInternal()).getBytes(UTF8));
+            fields.put(field(MAX_INACTIVE_INTERVAL), String.valueOf(redisSession.getMaxInactiveInterval()).getBytes(UTF8));
+            if (full) {
+                log.trace("Saving full session " + session + " into Redis hash");
+                fields.put(field(CREATION_TIME), String.valueOf(redisSession.getCreationTimeInternal()).getBytes(UTF8));
+                Principal principal = redisSession.getPrincipal();
+                if (principal instanceof Serializable) {
+                    fields.put(field(PRINCIPAL), serializer.serializeAttribute(principal));
+                }
+            } else {
+                log.trace("Saving " + fields.size() + " fields of " + session + " into Redis hash");
+            }
+
+            //放在一个事务里，一次往返，其他节点不会读到一半的数据
+            jedis = acquireConnection(session.getId());
+            Transaction transaction = jedis.multi();
+            if (full) {
+                transaction.del(binaryId);
+            } else if (removed.length > 0) {
+                transaction.hdel(binaryId, removed);
+            }
+            transaction.hmset(binaryId, fields);
+            int ttl = redisSession.getMaxInactiveInterval();
+            if (ttl > 0) {
+                transaction.expire(binaryId, physicalTtl(ttl));
+            }
+            index(transaction, redisSession.getId(), ttl);
+            //事务里命令执行出错(比如key还是string模式留下的，WRONGTYPE)不会抛异常，放在结果里
+            List<Object> results = transaction.exec();
+            if (results == null) {
+                throw new SessionSaveException("transaction discarded while saving session " + redisSession.getId());
+            }
+            for (Object result : results) {
+                if (result instanceof Exception) {
+                    throw new SessionSaveException("error saving session " + redisSession.getId() + " to redis hash", (Exception) result);
+                }
+            }
+            written = true;
+
+            digests.putAll(newDigests);
+            for (String name : removedNames) {
+                digests.remove(name);
+            }
+            if (full) {
+                redisSession.setSerializedSize(sizeOf(fields));
+            }
+            redisSession.setPersisted(true);
+            redisSession.setLastTouchedTime(System.currentTimeMillis());
+            recordWrite(redisSession.getId());
+            return true;
+
+        } catch (SessionSaveException e) {
+            log.error("保存session失败:" + redisSession.getId(), e);
+            throw e;
+        } catch (Exception e) {
+            log.error("保存session失败:" + redisSession.getId(), e);
+            throw new SessionSaveException("error saving session " + redisSession.getId() + " to redis hash", e);
+        } finally {
+            if (jedis != null) {
+                jedis.close();
+            }
+            if (!written) {
+                //修改记录已经清掉了，不知道redis里写了多少，下次整个重写
+                redisSession.markFullyDirty();
+            }
+        }
+    }
+
+    /**
+     * 从redis hash取回session的所有字段和剩余过期时间
+     *
+     * @param id
+     * @param manager
+     * @param touch
+     * @param includeExpired
+     * @return
+     * @throws IOException
+     */
+    @Override
+    protected LoadedSession fetch(String id, Manager manager, boolean touch, boolean includeExpired) throws IOException {
+
+        Jedis jedis = null;
+        try {
+            Map<byte[], byte[]> fields = null;
+            long                ttl    = -2;
+            if (!touch || readsFromReplica(id)) {
+                //从节点只能读，不刷新过期时间时也这样读；字段和剩余过期时间一次往返取回来
+                jedis = includeExpired ? acquireConnection(id) : acquireReadConnection(id);
+                Pipeline                      pipeline       = jedis.pipelined();
+                Response<Map<byte[], byte[]>> fieldsResponse = pipeline.hgetAll(key(id));
+                Response<Long>                ttlResponse    = pipeline.ttl(key(id));
+                pipeline.sync();
+                fields = fieldsResponse.get();
+                ttl = ttlResponse.get();
+                if (!includeExpired && isExpired(ttl)) {
+                    fields = null;
+                }
+                if (fields == null || fields.isEmpty()) {
+                    //从节点上没有可能是还没同步过来，再问一次主节点
+                    jedis.close();
+                    jedis = null;
+                }
+            }
+            if (jedis == null) {
+                //主节点上一次往返读取，快到刷新时间的顺便刷新过期时间
+                jedis = acquireConnection(id);
+                List<?> loaded = loadAndTouch(jedis, id, manager.getMaxInactiveInterval());
+                if (loaded != null) {
+                    fields = toMap((List<?>) loaded.get(0));
+                    ttl = (Long) loaded.get(1);
+                }
+            }
+            ttl = logicalTtl(ttl);
+            return fields == null || fields.isEmpty() ? null : new LoadedSession(id, fields, ttl, false);
+        } catch (Exception e) {
+
+            log.error("find session失败", e);
+            throw new IOException("error fetch session from redis");
+        } finally {
+            if (jedis != null) {
+                jedis.close();
+            }
+        }
+    }
+
+    /**
+     * 把取回的字段还原成session
+     *
+     * @param loaded
+     * @param manager
+     * @return
+     * @throws IOException
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Session restore(LoadedSession loaded, Manager manager) throws IOException {
+
+        String              id     = loaded.getId();
+        Map<byte[], byte[]> fields = (Map<byte[], byte[]>) loaded.getData();
+        long                ttl    = loaded.getTtl();
+        try {
+            log.trace("Loading session " + id + " from Redis hash");
+            ClusterSession session = (ClusterSession) manager.createEmptySession();
+            session.setId(id);
+            long lastAccessedTime = 0;
+            session.setSerializedSize(sizeOf(fields));
+            for (Map.Entry<byte[], byte[]> entry : fields.entrySet()) {
+                String field = new String(entry.getKey(), UTF8);
+                byte[] value = entry.getValue();
+                if (field.startsWith(ATTRIBUTE_PREFIX)) {
+                    String name = field.substring(ATTRIBUTE_PREFIX.length());
+                    if (lazyAttributes) {
+                        session.putLazyAttributeInternal(name, value, serializer);
+                    } else {
+                        session.putAttributeInternal(name, serializer.deserializeAttribute(value));
+                    }
+                    session.getAttributeDigests().put(name, ContentDigest.hash64(value));
+                } else if (field.equals(CREATION_TIME)) {
+                    session.setCreationTime(Long.parseLong(new String(value, UTF8)));
+                } else if (field.equals(PRINCIPAL)) {
+                    session.setPrincipalInternal((Principal) serializer.deserializeAttribute(value));
+                } else if (field.equals(LAST_ACCESSED_TIME)) {
+                    lastAccessedTime = Long.parseLong(new String(value, UTF8));
+                }
+            }
+            //setCreationTime会覆盖访问时间，最后再设置
+            if (lastAccessedTime > 0) {
+                session.setLastAccessedTimeInternal(lastAccessedTime);
+            }
+
+            session.setNew(false);
+            session.setMaxInactiveInterval(manager.getMaxInactiveInterval());
+            session.access();
+            session.setValid(true);
+            session.resetDirtyTracking();
+            session.setPersisted(true);
+            session.setLastTouchedTime(touchedTime(ttl, session.getMaxInactiveInterval()));
+            return session;
+        } catch (Exception e) {
+
+            log.error("find session失败", e);
+            throw new IOException("error fetch session from redis");
+        }
+    }
+
+    @Override
+    protected List<?> loadAndTouch(Jedis jedis, String id, int maxInactive) {
+
+        return loadAndTouch(LOAD_AND_TOUCH, jedis, id, maxInactive);
+    }
+
+    /**
+     * HGETALL返回的字段和值交替排列的列表转成map
+     *
+     * @param list
+     * @return
+     */
+    private static Map<byte[], byte[]> toMap(List<?> list) {
+
+        Map<byte[], byte[]> fields = new LinkedHashMap<byte[], byte[]>(list.size());
+        for (int i = 0 ; i + 1 < list.size() ; i += 2) {
+            fields.put((byte[]) list.get(i), (byte[]) list.get(i + 1));
+        }
+        return fields;
+    }
+
+    private static int sizeOf(Map<byte[], byte[]> fields) {
+
+        int size = 0;
+        for (Map.Entry<byte[], byte[]> entry : fields.entrySet()) {
+            size += entry.getKey().length + entry.getValue().length;
+        }
+        return size;
+    }
+}
@@ -7,98 +7,730 @@ import org.apache.juli.logging.LogFactory;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
 import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 基于redis的session存储
+ * <p>
+ * 开启大属性单独存放后，序列化后超过阈值的属性存到按内容SHA-1命名的key里，session里只写key。
+ * 内容一样的属性不管在哪个session里都是同一个key，只在内容变化时写入；
+ * 每次刷新session的过期时间都顺便刷新它引用的key，删除session时不删，可能还有别的session在用，等它们自己过期
+ * <p>
+ * 所有key都加上keyPrefix，同一个redis里的几个应用互不干扰。开启session索引后每个分片有一个sorted set，
+ * 成员是sessionId，分数是过期时刻(毫秒)，和session的过期时间一起更新，计数、分页列出都不用扫描整个keyspace
  */
-public class RedisRepository implements SessionRepository {
+public class RedisRepository implements SnapshotRepository, BlobStore {
 
     private final Log log = LogFactory.getLog(RedisRepository.class);
 
-    private JedisPool connectionPool;
+    //每个分片默认的虚拟节点数，和jedis的分片一样
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    //redis分片，只有一个分片时就是原来的单个连接池
+    private ConsistentHash<RedisShard> shards;
+
+    private final int timeout;
+
+    private final String password;
+
+    //开启从节点读取后，写过的session在这段时间内还是读主节点，防止从节点还没同步
+    private long replicaLagMillis = 0;
+
+    //本节点最近写过的session和写入时间
+    private final ConcurrentHashMap<String, Long> recentWrites = new ConcurrentHashMap<String, Long>();
+    private final AtomicInteger                   writeCount   = new AtomicInteger();
     private int database = 0;
-    private Serializer serializer;
+    protected Serializer serializer;
     private byte[] NULL_SESSION = "null".getBytes();
 
+    //后台批量写入，没开启的时候为null
+    private PipelineFlusher flusher;
+
+    //所有key的前缀，默认没有前缀，和以前的数据兼容
+    private String keyPrefix = "";
+
+    //按过期时刻排序的session索引，加上前缀后的key
+    static final String INDEX_KEY = "sessions:expiry";
+
+    //是否维护session索引
+    private boolean sessionIndex = false;
+
+    //开启过期清理后redis里的过期时间比session多留的秒数，过期的session还能读出来触发监听；0表示不开启
+    private int expiryGrace = 0;
+
+    //取到期session时从哪个分片开始，几个分片轮流
+    private final AtomicInteger nextClaimShard = new AtomicInteger();
+
+    //带版本的值以这个字节开头，后面8个字节是版本号，再后面是序列化数据；
+    //序列化和压缩的数据都不会以它开头，老数据没有版本头，当作版本0
+    static final byte VERSION_HEADER = (byte) 0xF3;
+
+    private static final int VERSION_HEADER_LENGTH = 9;
+
+    //版本冲突后最多合并重试几次，还冲突就直接覆盖
+    private static final int MAX_MERGE_ATTEMPTS = 10;
+
+    //存储里的版本头和ARGV[1]一致(ARGV[1]为空表示期望没有版本头)或者key不存在时写入返回1，否则返回存储里的值
+    private static final RedisScript COMPARE_AND_SET = new RedisScript("local current = redis.call('GET', KEYS[1])\n"
+            + "if current then\n"
+            + "  if ARGV[1] == '' then\n"
+            + "    if string.byte(current, 1) == 243 then return current end\n"
+            + "  elseif string.sub(current, 1, 9) ~= ARGV[1] then\n"
+            + "    return current\n"
+            + "  end\n"
+            + "end\n"
+            + "if tonumber(ARGV[3]) > 0 then\n"
+            + "  redis.call('SETEX', KEYS[1], ARGV[3], ARGV[2])\n"
+            + "else\n"
+            + "  redis.call('SET', KEYS[1], ARGV[2])\n"
+            + "end\n"
+            + "if KEYS[2] then redis.call('ZADD', KEYS[2], ARGV[4], ARGV[5]) end\n"
+            + "return 1");
+
+    //读取session和剩余过期时间，剩余时间不超过ARGV[2]秒时顺便把过期时间刷新成ARGV[1]秒，返回值和刷新后的剩余时间；
+    //剩余时间小于ARGV[3]秒的已经过期，只是还在宽限期里等着触发监听，当作不存在；有KEYS[2]时索引里的过期时刻一起更新成ARGV[4]
+    private static final RedisScript LOAD_AND_TOUCH = new RedisScript("local value = redis.call('GET', KEYS[1])\n"
+            + "if not value then return nil end\n"
+            + "local ttl = redis.call('TTL', KEYS[1])\n"
+            + "if ttl >= 0 and ttl < tonumber(ARGV[3]) then return nil end\n"
+            + "if ttl >= 0 and ttl <= tonumber(ARGV[2]) then\n"
+            + "  redis.call('EXPIRE', KEYS[1], ARGV[1])\n"
+            + "  if KEYS[2] then redis.call('ZADD', KEYS[2], ARGV[4], ARGV[5]) end\n"
+            + "  ttl = tonumber(ARGV[1])\n"
+            + "end\n"
+            + "return {value, ttl}");
+
+    //取出索引里到期的成员并删掉，多个节点同时取也不会拿到同一个
+    private static final RedisScript CLAIM_EXPIRED = new RedisScript("local due = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2])\n"
+            + "if #due > 0 then redis.call('ZREM', KEYS[1], unpack(due)) end\n"
+            + "return due");
+
+    //剩余时间还在宽限期内才删，取出来之后又被保存过的不删
+    private static final RedisScript DELETE_IF_EXPIRED = new RedisScript("local ttl = redis.call('TTL', KEYS[1])\n"
+            + "if ttl >= 0 and ttl <= tonumber(ARGV[1]) then return redis.call('DEL', KEYS[1]) end\n"
+            + "return 0");
+
+    //只读请求距上次刷新超过maxInactiveInterval的这个比例，读取时顺便刷新过期时间，和manager的一致
+    protected double touchFraction = 0.2;
+
+    //是否按版本号做条件写入
+    private boolean versionedWrites = false;
+
+    //序列化后不小于这个字节数的属性单独存放，0表示不开启
+    private int offloadThreshold = 0;
+
+    //单独存放的属性的key前缀，后面是内容的SHA-1
+    static final String BLOB_KEY_PREFIX = "blob:";
+
+    //单独存放的属性比session多保留的秒数，session的过期时间和它们不是同一条命令刷新的
+    private static final int BLOB_TTL_GRACE = 60;
+
+    //保存策略，CONTENT_HASH时内容没变化就不写
+    protected SavePolicy savePolicy = SavePolicy.DIRTY_ONLY;
+
+    //统计，save失败在这里面被吃掉了，外面看不到，要在这里记
+    protected SessionStatistics statistics;
+
     public RedisRepository(Serializer serializer, String host, int port, int timeout, String password, int database) {
 
-        this.serializer = serializer;
-        try {
-            //redis连接池
-            JedisPoolConfig config = new JedisPoolConfig();
-            config.setFairness(true);
-            config.setMaxTotal(500);
-            config.setMaxWaitMillis(1000 * 100);
-            config.setMaxIdle(50);
-            config.setBlockWhenExhausted(true);
-            config.setTestOnCreate(true);
-            config.setTestOnReturn(true);
-            config.setTestWhileIdle(true);
-            config.setTestOnBorrow(true);
-            connectionPool = new JedisPool(config, host, port, timeout);
-            this.database = database;
-        } catch (Exception e) {
-            e.printStackTrace();
-            log.error(e);
+        this(serializer, Collections.singletonList(host + ":" + port), DEFAULT_VIRTUAL_NODES, timeout, password, database);
+    }
+
+    /**
+     * 多个redis分片，每个分片一个连接池，session按id一致性哈希到其中一个分片
+     *
+     * @param serializer
+     * @param endpoints    分片地址，host:port
+     * @param virtualNodes 每个分片的虚拟节点数
+     * @param timeout
+     * @param password
+     * @param database
+     */
+    public RedisRepository(Serializer serializer, List<String> endpoints, int virtualNodes, int timeout, String password, int database) {
+
+        this.serializer = serializer;
+        this.database = database;
+        this.timeout = timeout;
+        this.password = password != null && password.length() > 0 ? password : null;
+
+        List<String>     names = new ArrayList<String>(endpoints.size());
+        List<RedisShard> nodes = new ArrayList<RedisShard>(endpoints.size());
+        for (String endpoint : endpoints) {
+            String name = endpoint.trim();
+            names.add(name);
+            nodes.add(new RedisShard(createPool(name)));
+        }
+        shards = new ConsistentHash<RedisShard>(names, nodes, virtualNodes);
+    }
+
+    private JedisPool createPool(String endpoint) {
+
+        //密码和database在建连接时设置，每次取连接不用再SELECT
+        return new JedisPool(createPoolConfig(), hostOf(endpoint), portOf(endpoint), timeout, password, database);
+    }
+
+    /**
+     * 开启从节点读取，find发到从节点，save和remove还是写主节点
+     *
+     * @param replicaGroups 按分片顺序每个分片一组从节点，一组里多个从节点用|分开
+     * @param lagMillis     写过的session在这段时间内还读主节点
+     */
+    public void enableReplicaReads(List<String> replicaGroups, long lagMillis) {
+
+        List<RedisShard> nodes = shards.getNodes();
+        if (replicaGroups.size() != nodes.size()) {
+            throw new IllegalArgumentException("expected " + nodes.size() + " replica groups but got " + replicaGroups.size());
+        }
+        for (int i = 0 ; i < nodes.size() ; i++) {
+            List<JedisPool> replicas = new ArrayList<JedisPool>();
+            for (String endpoint : replicaGroups.get(i).split("\\|")) {
+                if (endpoint.trim().length() > 0) {
+                    replicas.add(createPool(endpoint.trim()));
+                }
+            }
+            nodes.get(i).setReplicas(replicas);
+        }
+        this.replicaLagMillis = lagMillis;
+    }
+
+    static String hostOf(String endpoint) {
+
+        int colon = endpoint.lastIndexOf(':');
+        return colon < 0 ? endpoint : endpoint.substring(0, colon);
+    }
+
+    static int portOf(String endpoint) {
+
+        int colon = endpoint.lastIndexOf(':');
+        return colon < 0 ? Protocol.DEFAULT_PORT : Integer.parseInt(endpoint.substring(colon + 1));
+    }
+
+    /**
+     * redis连接池配置
+     *
+     * @return
+     */
+    private static JedisPoolConfig createPoolConfig() {
+
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setFairness(true);
+        config.setMaxTotal(500);
+        config.setMaxWaitMillis(1000 * 100);
+        config.setMaxIdle(50);
+        config.setBlockWhenExhausted(true);
+        config.setTestOnCreate(true);
+        config.setTestOnReturn(true);
+        config.setTestWhileIdle(true);
+        config.setTestOnBorrow(true);
+        return config;
+    }
+
+    /**
+     * 获取session所在分片的redis连接
+     *
+     * @param id sessionId
+     * @return
+     */
+    protected Jedis acquireConnection(String id) {
+
+        return shards.get(id).getPrimary().getResource();
+    }
+
+    /**
+     * 设置key前缀，一般用应用名加冒号，改了前缀以前的数据就读不到了
+     *
+     * @param keyPrefix
+     */
+    public void setKeyPrefix(String keyPrefix) {
+
+        this.keyPrefix = keyPrefix == null ? "" : keyPrefix;
+    }
+
+    /**
+     * 开启session索引，之前写入的session要等下次保存或刷新过期时间才会进索引
+     */
+    public void enableSessionIndex() {
+
+        this.sessionIndex = true;
+    }
+
+    public boolean isSessionIndexEnabled() {
+
+        return sessionIndex;
+    }
+
+    /**
+     * 开启过期清理：session到期后redis里还多留graceSeconds秒，这段时间里请求读不到它，
+     * 由清理线程从索引里取出来触发监听后删掉。会同时开启session索引
+     *
+     * @param graceSeconds
+     */
+    public void enableExpiryReaping(int graceSeconds) {
+
+        this.sessionIndex = true;
+        this.expiryGrace = Math.max(1, graceSeconds);
+    }
+
+    /**
+     * redis里实际设置的过期秒数，开启过期清理时多留宽限期
+     *
+     * @param ttl session的过期秒数
+     * @return
+     */
+    protected int physicalTtl(int ttl) {
+
+        return ttl > 0 ? ttl + expiryGrace : ttl;
+    }
+
+    /**
+     * redis里的剩余秒数换算成session的剩余秒数
+     *
+     * @param ttl redis返回的剩余秒数，小于0表示不存在或者不过期
+     * @return
+     */
+    protected long logicalTtl(long ttl) {
+
+        return ttl >= 0 ? Math.max(0, ttl - expiryGrace) : ttl;
+    }
+
+    /**
+     * redis里还在，但session已经过期、在宽限期里等着触发监听
+     *
+     * @param ttl redis返回的剩余秒数
+     * @return
+     */
+    protected boolean isExpired(long ttl) {
+
+        return expiryGrace > 0 && ttl >= 0 && ttl <= expiryGrace;
+    }
+
+    /**
+     * 从索引里取出到期的session，取出的同时从索引里删掉，每个session只会被一个节点取到。
+     * 每次从不同的分片开始，几个节点一起清理时分散在不同分片上
+     *
+     * @param limit 最多取多少个
+     * @return
+     */
+    public List<String> claimExpired(int limit) {
+
+        List<RedisShard> nodes  = shards.getNodes();
+        List<String>     claimed = new ArrayList<String>();
+        byte[]           now     = String.valueOf(System.currentTimeMillis()).getBytes();
+        int              start   = nextClaimShard.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0 ; i < nodes.size() && claimed.size() < limit ; i++) {
+            Jedis jedis = null;
+            try {
+                jedis = nodes.get((start + i) % nodes.size()).getPrimary().getResource();
+                List<?> due = (List<?>) CLAIM_EXPIRED.execute(jedis, Collections.singletonList(indexKey()),
+                        Arrays.asList(now, String.valueOf(limit - claimed.size()).getBytes()));
+                for (Object id : due) {
+                    claimed.add(new String((byte[]) id));
+                }
+            } finally {
+                if (jedis != null) {
+                    jedis.close();
+                }
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * 删掉已经过期的session，取出来之后又被保存过(不再是过期状态)或者本节点还有没写出去的保存就不删
+     *
+     * @param id
+     * @return 是否删了
+     */
+    public boolean deleteIfExpired(String id) {
+
+        if (flusher != null) {
+            PipelineFlusher.PendingWrite pending = flusher.findPending(id);
+            if (pending != null && !pending.isRemove()) {
+                return false;
+            }
+        }
+        Jedis jedis = null;
+        try {
+            jedis = acquireConnection(id);
+            Object deleted = DELETE_IF_EXPIRED.execute(jedis, Collections.singletonList(key(id)),
+                    Collections.singletonList(String.valueOf(expiryGrace).getBytes()));
+            return Long.valueOf(1).equals(deleted);
+        } finally {
+            if (jedis != null) {
+                jedis.close();
+            }
+        }
+    }
+
+    /**
+     * 加上前缀后redis里的key
+     *
+     * @param name sessionId或者单独存放的属性名
+     * @return
+     */
+    protected byte[] key(String name) {
+
+        return (keyPrefix + name).getBytes();
+    }
+
+    private byte[] indexKey() {
+
+        return key(INDEX_KEY);
+    }
+
+    /**
+     * 索引里的分数，过期时刻的毫秒数，不过期的session排在最后
+     *
+     * @param ttl 过期秒数
+     * @return
+     */
+    private static double expiryScore(long ttl) {
+
+        return ttl > 0 ? System.currentTimeMillis() + ttl * 1000 : Long.MAX_VALUE;
+    }
+
+    /**
+     * 在pipeline或事务里更新session在索引里的过期时刻，没开启索引什么都不做
+     *
+     * @param pipeline
+     * @param id
+     * @param ttl      过期秒数
+     */
+    protected void index(PipelineBase pipeline, String id, long ttl) {
+
+        if (sessionIndex) {
+            pipeline.zadd(indexKey(), expiryScore(ttl), id.getBytes());
+        }
+    }
+
+    /**
+     * 在pipeline或事务里把session从索引删掉
+     *
+     * @param pipeline
+     * @param id
+     */
+    protected void unindex(PipelineBase pipeline, String id) {
+
+        if (sessionIndex) {
+            pipeline.zrem(indexKey(), id.getBytes());
+        }
+    }
+
+    /**
+     * 没过期的session个数，每个分片一次ZCOUNT，O(log n)
+     *
+     * @return
+     */
+    public long countSessions() {
+
+        byte[] now   = String.valueOf(System.currentTimeMillis()).getBytes();
+        long   count = 0;
+        for (RedisShard shard : shards.getNodes()) {
+            Jedis jedis = null;
+            try {
+                jedis = shard.getPrimary().getResource();
+                count += jedis.zcount(indexKey(), now, "+inf".getBytes());
+            } finally {
+                if (jedis != null) {
+                    jedis.close();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 按过期时刻从近到远分页列出没过期的sessionId。
+     * 每个分片取前offset+count个再合并，每个分片O(log n + offset + count)
+     *
+     * @param offset
+     * @param count
+     * @return
+     */
+    public List<String> listSessionIds(int offset, int count) {
+
+        byte[]      now    = String.valueOf(System.currentTimeMillis()).getBytes();
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        for (RedisShard shard : shards.getNodes()) {
+            Jedis jedis = null;
+            try {
+                jedis = shard.getPrimary().getResource();
+                tuples.addAll(jedis.zrangeByScoreWithScores(indexKey(), now, "+inf".getBytes(), 0, offset + count));
+            } finally {
+                if (jedis != null) {
+                    jedis.close();
+                }
+            }
+        }
+        Collections.sort(tuples, new Comparator<Tuple>() {
+
+            public int compare(Tuple a, Tuple b) {
+
+                return Double.compare(a.getScore(), b.getScore());
+            }
+        });
+
+        List<String> ids = new ArrayList<String>(count);
+        for (int i = offset ; i < tuples.size() && ids.size() < count ; i++) {
+            ids.add(tuples.get(i).getElement());
+        }
+        return ids;
+    }
+
+    /**
+     * 删掉索引里已经过期的记录，session本身redis已经删了
+     *
+     * @return 删掉的记录数
+     */
+    public long pruneIndex() {
+
+        byte[] now     = String.valueOf(System.currentTimeMillis()).getBytes();
+        long   removed = 0;
+        for (RedisShard shard : shards.getNodes()) {
+            Jedis jedis = null;
+            try {
+                jedis = shard.getPrimary().getResource();
+                removed += jedis.zremrangeByScore(indexKey(), "-inf".getBytes(), now);
+            } finally {
+                if (jedis != null) {
+                    jedis.close();
+                }
+            }
+        }
+        return removed;
+    }
+
+    public SavePolicy getSavePolicy() {
+
+        return savePolicy;
+    }
+
+    public void setSavePolicy(SavePolicy savePolicy) {
+
+        this.savePolicy = savePolicy;
+    }
+
+    public void setStatistics(SessionStatistics statistics) {
+
+        this.statistics = statistics;
+    }
+
+    void recordError(int op) {
+
+        if (statistics != null) {
+            statistics.recordError(op);
+        }
+    }
+
+    /**
+     * 获取读session用的连接，本节点最近没写过这个session的话用从节点
+     *
+     * @param id sessionId
+     * @return
+     */
+    protected Jedis acquireReadConnection(String id) {
+
+        RedisShard shard = shards.get(id);
+        if (!shard.hasReplicas() || isRecentlyWritten(id)) {
+            return shard.getPrimary().getResource();
+        }
+        try {
+            return shard.nextReplica().getResource();
+        } catch (JedisConnectionException e) {
+            //从节点连不上就读主节点
+            log.warn("Replica unavailable, reading session " + id + " from primary: " + e.getMessage());
+            return shard.getPrimary().getResource();
+        }
+    }
+
+    /**
+     * 记下本节点写了这个session，之后一段时间读主节点
+     *
+     * @param id
+     */
+    protected void recordWrite(String id) {
+
+        if (replicaLagMillis <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        recentWrites.put(id, now);
+
+        //定期清掉已经过了同步时间的记录，避免只写不读的session一直留着
+        if (writeCount.incrementAndGet() % 1024 == 0) {
+            Iterator<Map.Entry<String, Long>> it = recentWrites.entrySet().iterator();
+            while (it.hasNext()) {
+                if (now - it.next().getValue() >= replicaLagMillis) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * 这个session现在是不是从从节点读
+     *
+     * @param id
+     * @return
+     */
+    protected boolean readsFromReplica(String id) {
+
+        return shards.get(id).hasReplicas() && !isRecentlyWritten(id);
+    }
+
+    private boolean isRecentlyWritten(String id) {
+
+        Long written = recentWrites.get(id);
+        if (written == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - written < replicaLagMillis) {
+            return true;
+        }
+        recentWrites.remove(id, written);
+        return false;
+    }
+
+    /**
+     * 开启带版本的条件写入，并发请求保存同一个session时不再互相覆盖，冲突时按属性合并后重试。
+     * 开了后台批量写入的话批量写入的部分还是直接覆盖
+     */
+    public void enableVersionedWrites() {
+
+        this.versionedWrites = true;
+    }
+
+    /**
+     * 开启大属性单独存放，序列化后不小于threshold字节的属性存到单独的key，session里只留引用，
+     * 第一次用到时才读，内容没变的不再重写。要用CompactSerializer，只支持string存储模式
+     *
+     * @param threshold 字节数
+     */
+    public void enableOffloading(int threshold) {
+
+        this.offloadThreshold = threshold;
+    }
+
+    /**
+     * 开启后台批量写入，save和remove都先放到队列里，由后台线程用pipeline批量写
+     *
+     * @param maxBatchSize    一批最多写多少个
+     * @param maxLingerMillis 最多等多久凑一批
+     */
+    public void enableWriteBatching(int maxBatchSize, long maxLingerMillis) {
+
+        if (flusher != null) {
+            return;
+        }
+        flusher = new PipelineFlusher(this, maxBatchSize, maxLingerMillis);
+        flusher.start();
+    }
+
+    /**
+     * 关闭redis连接池
+     */
+    public void close() {
+
+        if (flusher != null) {
+            flusher.stop();
+            flusher = null;
+        }
+        for (RedisShard shard : shards.getNodes()) {
+            shard.destroy();
         }
     }
 
     /**
-     * 获取redis连接
+     * 根据redis里剩余的过期时间推算上次设置过期时间的时刻
      *
+     * @param ttl         剩余秒数，小于0表示没有过期时间
+     * @param maxInactive 设置过期时间时用的秒数
      * @return
      */
-    private Jedis acquireConnection() {
-
-        Jedis jedis = connectionPool.getResource();
+    protected static long touchedTime(long ttl, int maxInactive) {
 
-/*
-        if (getDatabase() != 0) {
-            jedis.select(getDatabase());
+        long now = System.currentTimeMillis();
+        if (ttl < 0 || maxInactive <= 0) {
+            return now;
         }
-*/
-
-        return jedis;
+        return now - Math.max(0, maxInactive - ttl) * 1000L;
     }
 
     /**
-     * 关闭redis连接池
+     * 只刷新过期时间，不重写session
+     *
+     * @param session
+     * @param seconds
      */
-    public void close() {
+    public void expire(Session session, int seconds) {
 
-        try {
-            connectionPool.destroy();
-        } catch (Exception e) {
-            log.error(e);
+        Collection<String> blobKeys = ((ClusterSession) session).getOffloadedKeys().values();
+        if (flusher != null) {
+            flusher.enqueue(PipelineFlusher.PendingWrite.expire(session.getId(), seconds));
+            for (String key : blobKeys) {
+                //写入时再加上宽限期
+                flusher.enqueue(PipelineFlusher.PendingWrite.expire(key, seconds + BLOB_TTL_GRACE));
+            }
+            return;
         }
-    }
 
-    public void expire(Session session, int seconds) {
+        if (!blobKeys.isEmpty()) {
+            writeBlobs(Collections.<String, byte[]>emptyMap(), blobKeys, seconds);
+        }
 
-        Jedis  jedis    = acquireConnection();
-        byte[] binaryId = session.getId().getBytes();
-        log.trace("Setting expire timeout on session [" + session.getId() + "] to " + session.getMaxInactiveInterval());
-        jedis.expire(binaryId, session.getMaxInactiveInterval());
+        Jedis jedis = null;
+        try {
+            log.trace("Setting expire timeout on session [" + session.getId() + "] to " + seconds);
+            jedis = acquireConnection(session.getId());
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.expire(key(session.getId()), physicalTtl(seconds));
+            index(pipeline, session.getId(), seconds);
+            pipeline.sync();
+        } finally {
+            if (jedis != null) {
+                jedis.close();
+            }
+        }
     }
 
     /**
      * 保存session到redis
      *
      * @param session
+     * @return 内容没变化跳过写入时返回false
+     * @throws SessionSaveException 写入失败，session已经整个标记为脏数据，下次保存会整个重写
      */
-    public void save(Session session) {
+    public boolean save(Session session) {
 
-        Jedis jedis = null;
+        Jedis               jedis        = null;
+        ClusterSession      redisSession = (ClusterSession) session;
+        Map<String, byte[]> blobs        = null;
+        boolean             written      = false;
 
         try {
             log.trace("Saving session " + session + " into Redis");
 
-            ClusterSession redisSession = (ClusterSession) session;
-
             if (log.isTraceEnabled()) {
                 log.trace("Session Contents [" + redisSession.getId() + "]:");
                 for (Object name : Collections.list(redisSession.getAttributeNames())) {
@@ -106,16 +738,281 @@ public class RedisRepository implements SessionRepository {
                 }
             }
 
-            redisSession.resetDirtyTracking();
-            byte[] binaryId = redisSession.getId().getBytes();
+            //先取出并重置修改记录再序列化，序列化时别的请求做的修改留到下次保存
+            Set<String> changed;
+            Set<String> removed;
+            boolean     fullyDirty;
+            synchronized (redisSession) {
+                changed = new HashSet<String>(redisSession.getChangedAttributes().keySet());
+                removed = new HashSet<String>(redisSession.getRemovedAttributes());
+                fullyDirty = redisSession.isFullyDirty();
+                redisSession.resetDirtyTracking();
+            }
+            if (offloadThreshold > 0) {
+                redisSession.setBlobStore(this);
+                blobs = offloadLargeAttributes(redisSession, changed, removed);
+            }
+            byte[] data = serializer.serializeFrom(redisSession);
+            int    ttl  = redisSession.getMaxInactiveInterval();
+
+            //摘要、persisted这些状态等写成功以后再记，写失败时session还和存储里的对得上
+            long digest = 0;
+            if (savePolicy == SavePolicy.CONTENT_HASH) {
+                //内容和上次读写时一样，不用再写
+                digest = serializer.contentDigest(data, redisSession);
+                if (redisSession.isPersisted() && digest == redisSession.getContentDigest()) {
+                    log.trace("Session " + redisSession.getId() + " unchanged, skip saving");
+                    written = true;
+                    return false;
+                }
+            }
+
+            //大属性先写，其他节点读到新的session时引用的属性一定已经在了
+            if (blobs != null) {
+                writeBlobs(blobs, redisSession.getOffloadedKeys().values(), ttl);
+            }
 
-            jedis = acquireConnection();
+            if (flusher != null) {
+                flusher.enqueue(new PipelineFlusher.PendingWrite(redisSession.getId(), data, ttl));
+            } else {
+                //值和过期时间一条命令写进去
+                jedis = acquireConnection(redisSession.getId());
+                if (versionedWrites) {
+                    compareAndSet(jedis, redisSession, data, ttl, changed, removed, fullyDirty);
+                } else {
+                    write(jedis, redisSession.getId(), data, ttl);
+                }
+                recordWrite(redisSession.getId());
+            }
+            written = true;
 
-            jedis.set(binaryId, serializer.serializeFrom(redisSession));
+            if (savePolicy == SavePolicy.CONTENT_HASH) {
+                redisSession.setContentDigest(digest);
+            }
+            redisSession.setPersisted(true);
+            if (flusher != null || !versionedWrites) {
+                //条件写入合并之后的大小在compareAndSet里记
+                redisSession.setSerializedSize(data.length);
+            }
+            redisSession.setLastTouchedTime(System.currentTimeMillis());
+            return true;
 
         } catch (Exception e) {
-            log.error(e.getMessage());
-            e.printStackTrace();
+            log.error("保存session失败:" + redisSession.getId(), e);
+            throw new SessionSaveException("error saving session " + redisSession.getId() + " to redis", e);
+        } finally {
+            if (jedis != null) {
+                jedis.close();
+            }
+            if (!written) {
+                //修改记录已经清掉了，下次整个重写；这次新算出来的大属性不一定写进去了，下次不当作已经单独存放
+                redisSession.markFullyDirty();
+                if (blobs != null) {
+                    redisSession.getOffloadedKeys().values().removeAll(blobs.keySet());
+                }
+            }
+        }
+    }
+
+    /**
+     * 直接写入session，索引在同一个pipeline里更新
+     *
+     * @param jedis
+     * @param id
+     * @param value
+     * @param ttl
+     */
+    private void write(Jedis jedis, String id, byte[] value, int ttl) {
+
+        Pipeline pipeline = jedis.pipelined();
+        if (ttl > 0) {
+            pipeline.setex(key(id), physicalTtl(ttl), value);
+        } else {
+            pipeline.set(key(id), value);
+        }
+        index(pipeline, id, ttl);
+        pipeline.sync();
+    }
+
+    /**
+     * 按版本写入，存储里的版本和session读出来时不一样就把存储里的最新内容合并进来再写，
+     * 被整体标记为脏数据的session不合并，以本地的为准
+     *
+     * @param jedis
+     * @param session
+     * @param data       序列化后的数据
+     * @param ttl
+     * @param changed    本次保存修改过的属性
+     * @param removed    本次保存删除过的属性
+     * @param fullyDirty
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private void compareAndSet(Jedis jedis, ClusterSession session, byte[] data, int ttl,
+                               Set<String> changed, Set<String> removed, boolean fullyDirty) throws IOException, ClassNotFoundException {
+
+        List<byte[]> keys   = new ArrayList<byte[]>(2);
+        byte[]       ttlArg = String.valueOf(physicalTtl(ttl)).getBytes();
+        keys.add(key(session.getId()));
+        if (sessionIndex) {
+            keys.add(indexKey());
+        }
+        for (int attempt = 1 ; ; attempt++) {
+            long   version  = session.getVersion();
+            byte[] expected = version == 0 ? new byte[0] : versionHeader(version);
+            byte[] value    = withVersion(version + 1, data);
+            byte[] score    = String.valueOf((long) expiryScore(ttl)).getBytes();
+            Object result = COMPARE_AND_SET.execute(jedis, keys,
+                    Arrays.asList(expected, value, ttlArg, score, session.getId().getBytes()));
+            if (!(result instanceof byte[])) {
+                session.setVersion(version + 1);
+                session.setSerializedSize(data.length);
+                return;
+            }
+
+            byte[] current = (byte[]) result;
+            if (attempt >= MAX_MERGE_ATTEMPTS) {
+                //一直冲突就直接覆盖
+                log.warn("Session " + session.getId() + " still conflicts after " + attempt + " merges, overwriting");
+                write(jedis, session.getId(), withVersion(versionOf(current) + 1, data), ttl);
+                session.setVersion(versionOf(current) + 1);
+                session.setSerializedSize(data.length);
+                return;
+            }
+            if (fullyDirty) {
+                session.setVersion(versionOf(current));
+                continue;
+            }
+
+            log.trace("Session " + session.getId() + " was modified concurrently, merging attributes");
+            ClusterSession stored = (ClusterSession) session.getManager().createEmptySession();
+            stored.setBlobStore(this);
+            serializer.deserializeInto(payloadOf(current), stored);
+            stored.setVersion(versionOf(current));
+            session.mergeFrom(stored, changed, removed);
+            data = serializer.serializeFrom(session);
+        }
+    }
+
+    /**
+     * 找出序列化后超过阈值的属性，换成只有key的引用。
+     * 只检查本次修改过的和已经单独存放、又被读出来的属性，其他属性没被用过，内容不会变
+     *
+     * @param session
+     * @param changed 本次保存修改过的属性
+     * @param removed 本次保存删除过的属性
+     * @return 内容变了要写入的属性，key对应序列化后的数据
+     * @throws IOException
+     */
+    private Map<String, byte[]> offloadLargeAttributes(ClusterSession session, Set<String> changed, Set<String> removed) throws IOException {
+
+        Map<String, String> offloaded = session.getOffloadedKeys();
+        for (String name : removed) {
+            offloaded.remove(name);
+        }
+        Set<String> names = new HashSet<String>(changed);
+        names.addAll(offloaded.keySet());
+
+        Map<String, byte[]> blobs = new LinkedHashMap<String, byte[]>();
+        for (String name : names) {
+            Object value = session.peekAttribute(name);
+            if (value instanceof LazyAttribute) {
+                //还是引用或者还没反序列化，没有被用过
+                continue;
+            }
+            if (!(value instanceof Serializable)) {
+                offloaded.remove(name);
+                continue;
+            }
+            byte[] data = serializer.serializeAttribute(value);
+            if (data.length < offloadThreshold) {
+                offloaded.remove(name);
+                continue;
+            }
+            String key = BLOB_KEY_PREFIX + ContentDigest.sha1Hex(data);
+            if (!key.equals(offloaded.get(name))) {
+                blobs.put(key, data);
+            }
+            if (!session.offloadAttribute(name, value, key, data.length)) {
+                //又被别的请求改了，这次按原样写，下次保存再单独存放
+                offloaded.remove(name);
+            }
+        }
+        return blobs;
+    }
+
+    /**
+     * 写入内容变了的大属性，session引用的其他大属性刷新过期时间，按分片各用一次pipeline
+     *
+     * @param blobs      要写入的属性，key对应序列化后的数据
+     * @param referenced session引用的所有属性的key
+     * @param ttl        session的过期秒数
+     */
+    private void writeBlobs(Map<String, byte[]> blobs, Collection<String> referenced, int ttl) {
+
+        Set<String> keys = new HashSet<String>(referenced);
+        keys.addAll(blobs.keySet());
+        if (keys.isEmpty() || (blobs.isEmpty() && ttl <= 0)) {
+            return;
+        }
+
+        Map<RedisShard, List<String>> byShard = new LinkedHashMap<RedisShard, List<String>>();
+        for (String key : keys) {
+            RedisShard   shard     = shards.get(key);
+            List<String> shardKeys = byShard.get(shard);
+            if (shardKeys == null) {
+                shardKeys = new ArrayList<String>();
+                byShard.put(shard, shardKeys);
+            }
+            shardKeys.add(key);
+        }
+
+        for (Map.Entry<RedisShard, List<String>> entry : byShard.entrySet()) {
+            Jedis jedis = null;
+            try {
+                jedis = entry.getKey().getPrimary().getResource();
+                Pipeline pipeline = jedis.pipelined();
+                for (String key : entry.getValue()) {
+                    byte[] binaryKey = key(key);
+                    byte[] data      = blobs.get(key);
+                    if (data != null && ttl > 0) {
+                        pipeline.setex(binaryKey, blobTtl(ttl), data);
+                    } else if (data != null) {
+                        pipeline.set(binaryKey, data);
+                    } else if (ttl > 0) {
+                        pipeline.expire(binaryKey, blobTtl(ttl));
+                    }
+                }
+                pipeline.sync();
+            } finally {
+                if (jedis != null) {
+                    jedis.close();
+                }
+            }
+        }
+    }
+
+    private int blobTtl(int ttl) {
+
+        return ttl > 0 ? physicalTtl(ttl) + BLOB_TTL_GRACE : ttl;
+    }
+
+    /**
+     * 读出单独存放的属性，在key所在的分片主节点上读
+     *
+     * @param key
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public Object loadBlob(String key) throws IOException, ClassNotFoundException {
+
+        Jedis jedis = null;
+        try {
+            log.trace("Loading offloaded attribute " + key + " from Redis");
+            jedis = acquireConnection(key);
+            byte[] data = jedis.get(key(key));
+            return data == null ? null : serializer.deserializeAttribute(data);
         } finally {
             if (jedis != null) {
                 jedis.close();
@@ -123,6 +1020,112 @@ public class RedisRepository implements SessionRepository {
         }
     }
 
+    /**
+     * 执行读取并刷新过期时间的脚本
+     *
+     * @param jedis
+     * @param id
+     * @param maxInactive 过期秒数
+     * @return 值和剩余过期时间，session不存在返回null
+     */
+    protected List<?> loadAndTouch(Jedis jedis, String id, int maxInactive) {
+
+        return loadAndTouch(LOAD_AND_TOUCH, jedis, id, maxInactive);
+    }
+
+    /**
+     * 执行读取并刷新过期时间的脚本，开启索引时把索引的key和新的过期时刻也传进去
+     *
+     * @param script
+     * @param jedis
+     * @param id
+     * @param maxInactive
+     * @return
+     */
+    protected List<?> loadAndTouch(RedisScript script, Jedis jedis, String id, int maxInactive) {
+
+        List<byte[]> keys = new ArrayList<byte[]>(2);
+        List<byte[]> args = new ArrayList<byte[]>(5);
+        long         threshold = touchThreshold(maxInactive);
+        keys.add(key(id));
+        args.add(String.valueOf(physicalTtl(maxInactive)).getBytes());
+        args.add(String.valueOf(threshold >= 0 ? threshold + expiryGrace : threshold).getBytes());
+        args.add(String.valueOf(expiryGrace > 0 ? expiryGrace + 1 : 0).getBytes());
+        if (sessionIndex) {
+            keys.add(indexKey());
+            args.add(String.valueOf((long) expiryScore(maxInactive)).getBytes());
+            args.add(id.getBytes());
+        }
+        return (List<?>) script.execute(jedis, keys, args);
+    }
+
+    /**
+     * 剩余过期时间不超过这个秒数，说明距上次刷新已经超过maxInactive * touchFraction，读取时顺便刷新
+     *
+     * @param maxInactive
+     * @return 不过期的session返回-1
+     */
+    protected long touchThreshold(int maxInactive) {
+
+        return maxInactive > 0 ? (long) (maxInactive * (1 - touchFraction)) : -1;
+    }
+
+    public void setTouchFraction(double touchFraction) {
+
+        this.touchFraction = touchFraction;
+    }
+
+    /**
+     * 值里的版本号，没有版本头的是0
+     *
+     * @param value
+     * @return
+     */
+    static long versionOf(byte[] value) {
+
+        if (value.length < VERSION_HEADER_LENGTH || value[0] != VERSION_HEADER) {
+            return 0;
+        }
+        long version = 0;
+        for (int i = 1 ; i < VERSION_HEADER_LENGTH ; i++) {
+            version = (version << 8) | (value[i] & 0xFF);
+        }
+        return version;
+    }
+
+    /**
+     * 去掉版本头后的序列化数据
+     *
+     * @param value
+     * @return
+     */
+    static byte[] payloadOf(byte[] value) {
+
+        if (value.length < VERSION_HEADER_LENGTH || value[0] != VERSION_HEADER) {
+            return value;
+        }
+        return Arrays.copyOfRange(value, VERSION_HEADER_LENGTH, value.length);
+    }
+
+    private static byte[] versionHeader(long version) {
+
+        byte[] header = new byte[VERSION_HEADER_LENGTH];
+        header[0] = VERSION_HEADER;
+        for (int i = VERSION_HEADER_LENGTH - 1 ; i > 0 ; i--) {
+            header[i] = (byte) version;
+            version >>>= 8;
+        }
+        return header;
+    }
+
+    private static byte[] withVersion(long version, byte[] data) {
+
+        byte[] value = new byte[VERSION_HEADER_LENGTH + data.length];
+        System.arraycopy(versionHeader(version), 0, value, 0, VERSION_HEADER_LENGTH);
+        System.arraycopy(data, 0, value, VERSION_HEADER_LENGTH, data.length);
+        return value;
+    }
+
     /**
      * 从redis加载session
      *
@@ -133,37 +1136,113 @@ public class RedisRepository implements SessionRepository {
      */
     public Session find(String id, Manager manager) throws IOException {
 
-        ClusterSession session;
-        Jedis          jedis = null;
-        try {
+        return load(id, manager, true, false);
+    }
+
+    /**
+     * 加载session但不刷新过期时间，列出session时用，不能让查看session的操作延长session的寿命
+     *
+     * @param id
+     * @param manager
+     * @return
+     * @throws IOException
+     */
+    public Session peek(String id, Manager manager) throws IOException {
+
+        return load(id, manager, false, false);
+    }
+
+    /**
+     * 加载已经过期、等着触发监听的session，过了宽限期redis已经删掉的返回null
+     *
+     * @param id
+     * @param manager
+     * @return
+     * @throws IOException
+     */
+    public Session loadExpired(String id, Manager manager) throws IOException {
+
+        return load(id, manager, false, true);
+    }
+
+    /**
+     * 从redis加载session
+     *
+     * @param id
+     * @param manager
+     * @param touch          快到刷新时间时是否顺便刷新过期时间
+     * @param includeExpired 是否读已经过期、还在宽限期内的session
+     * @return
+     * @throws IOException
+     */
+    protected Session load(String id, Manager manager, boolean touch, boolean includeExpired) throws IOException {
+
+        LoadedSession loaded = fetch(id, manager, touch, includeExpired);
+        return loaded == null ? null : restore(loaded, manager);
+    }
+
+    public LoadedSession fetch(String id, Manager manager) throws IOException {
+
+        return fetch(id, manager, true, false);
+    }
+
+    /**
+     * 从redis取回session的值和剩余过期时间，不反序列化
+     *
+     * @param id
+     * @param manager
+     * @param touch          快到刷新时间时是否顺便刷新过期时间
+     * @param includeExpired 是否读已经过期、还在宽限期内的session
+     * @return
+     * @throws IOException
+     */
+    protected LoadedSession fetch(String id, Manager manager, boolean touch, boolean includeExpired) throws IOException {
 
-            jedis = acquireConnection();
-            byte[] data = jedis.get(id.getBytes());
+        Jedis jedis = null;
+        try {
 
-            if (data == null) {
-                return null;
-            } else if (Arrays.equals(NULL_SESSION, data)) {
-                log.trace("Session " + id + " may be expired in Redis");
-                return null;
+            byte[]  data;
+            long    ttl;
+            boolean touched = false;
+            PipelineFlusher.PendingWrite pending = flusher != null ? flusher.findPending(id) : null;
+            if (pending != null) {
+                //本节点还没写到redis的数据
+                data = pending.getData();
+                ttl = pending.getTtl();
             } else {
-                log.trace("Deserializing session " + id + " from Redis");
-                session = (ClusterSession) manager.createEmptySession();
-                serializer.deserializeInto(data, session);
-                session.setId(id);
-                session.setNew(false);
-                session.setMaxInactiveInterval(manager.getMaxInactiveInterval());
-                session.access();
-                session.setValid(true);
-                session.resetDirtyTracking();
-
-                if (log.isTraceEnabled()) {
-                    log.trace("Session Contents [" + id + "]:");
-                    for (Object name : Collections.list(session.getAttributeNames())) {
-                        log.trace("  " + name);
+                data = null;
+                ttl = -2;
+                if (!touch || readsFromReplica(id)) {
+                    //从节点只能读，不刷新过期时间时也这样读；值和剩余过期时间一次往返取回来，用来判断要不要刷新过期时间
+                    jedis = includeExpired ? acquireConnection(id) : acquireReadConnection(id);
+                    Pipeline         pipeline     = jedis.pipelined();
+                    Response<byte[]> dataResponse = pipeline.get(key(id));
+                    Response<Long>   ttlResponse  = pipeline.ttl(key(id));
+                    pipeline.sync();
+                    data = dataResponse.get();
+                    ttl = ttlResponse.get();
+                    if (!includeExpired && isExpired(ttl)) {
+                        data = null;
+                    }
+                    if (data == null) {
+                        //从节点上没有可能是别的节点刚写还没同步过来，再问一次主节点
+                        jedis.close();
+                        jedis = null;
                     }
                 }
+                if (jedis == null) {
+                    //主节点上一次往返读取，快到刷新时间的顺便刷新过期时间
+                    jedis = acquireConnection(id);
+                    List<?> loaded = loadAndTouch(jedis, id, manager.getMaxInactiveInterval());
+                    if (loaded != null) {
+                        data = (byte[]) loaded.get(0);
+                        ttl = (Long) loaded.get(1);
+                        touched = logicalTtl(ttl) == manager.getMaxInactiveInterval();
+                    }
+                }
+                ttl = logicalTtl(ttl);
             }
-            return session;
+            return data == null ? null : new LoadedSession(id, data, ttl, touched);
         } catch (Exception e) {
 
             log.error("find session失败", e);
@@ -173,8 +1252,62 @@ public class RedisRepository implements SessionRepository {
                 jedis.close();
             }
         }
+    }
+
+    /**
+     * 把取回的值反序列化成session
+     *
+     * @param loaded
+     * @param manager
+     * @return
+     * @throws IOException
+     */
+    public Session restore(LoadedSession loaded, Manager manager) throws IOException {
+
+        String id   = loaded.getId();
+        byte[] data = (byte[]) loaded.getData();
+        long   ttl  = loaded.getTtl();
+        if (Arrays.equals(NULL_SESSION, data)) {
+            log.trace("Session " + id + " may be expired in Redis");
+            return null;
+        }
+        try {
+            log.trace("Deserializing session " + id + " from Redis");
+            ClusterSession session = (ClusterSession) manager.createEmptySession();
+            session.setBlobStore(this);
+            long version = versionOf(data);
+            data = payloadOf(data);
+            serializer.deserializeInto(data, session);
+            session.setVersion(version);
+            session.setId(id);
+            session.setNew(false);
+            session.setMaxInactiveInterval(manager.getMaxInactiveInterval());
+            session.access();
+            session.setValid(true);
+            session.resetDirtyTracking();
+            session.setPersisted(true);
+            session.setSerializedSize(data.length);
+            session.setLastTouchedTime(touchedTime(ttl, session.getMaxInactiveInterval()));
+            if (savePolicy == SavePolicy.CONTENT_HASH) {
+                session.setContentDigest(serializer.contentDigest(data, session));
+            }
+            if (!session.getOffloadedKeys().isEmpty() && loaded.takeTouched()) {
+                //读取时刷新了session的过期时间，引用的大属性一起刷新
+                writeBlobs(Collections.<String, byte[]>emptyMap(), session.getOffloadedKeys().values(), (int) ttl);
+            }
 
+            if (log.isTraceEnabled()) {
+                log.trace("Session Contents [" + id + "]:");
+                for (Object name : Collections.list(session.getAttributeNames())) {
+                    log.trace("  " + name);
+                }
+            }
+            return session;
+        } catch (Exception e) {
 
+            log.error("find session失败", e);
+            throw new IOException("error fetch session from redis");
+        }
     }
 
     /**
@@ -188,9 +1321,18 @@ public class RedisRepository implements SessionRepository {
 
         log.trace("Removing session ID : " + session.getId());
 
+        if (flusher != null) {
+            flusher.enqueue(new PipelineFlusher.PendingWrite(session.getId(), null, 0));
+            return;
+        }
+
         try {
-            jedis = acquireConnection();
-            jedis.del(session.getId());
+            jedis = acquireConnection(session.getId());
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.del(key(session.getId()));
+            unindex(pipeline, session.getId());
+            pipeline.sync();
+            recordWrite(session.getId());
         } finally {
             if (jedis != null) {
                 jedis.close();
@@ -198,6 +1340,62 @@ public class RedisRepository implements SessionRepository {
         }
     }
 
+    /**
+     * 写入一批session，按分片分组，每个分片用一次pipeline
+     *
+     * @param batch
+     */
+    void writeBatch(List<PipelineFlusher.PendingWrite> batch) {
+
+        Map<RedisShard, List<PipelineFlusher.PendingWrite>> byShard = new LinkedHashMap<RedisShard, List<PipelineFlusher.PendingWrite>>();
+        for (PipelineFlusher.PendingWrite write : batch) {
+            RedisShard                         shard  = shards.get(write.getId());
+            List<PipelineFlusher.PendingWrite> writes = byShard.get(shard);
+            if (writes == null) {
+                writes = new ArrayList<PipelineFlusher.PendingWrite>();
+                byShard.put(shard, writes);
+            }
+            writes.add(write);
+        }
+
+        //某个分片失败整批重试，已经写成功的分片再写一次结果也一样
+        for (Map.Entry<RedisShard, List<PipelineFlusher.PendingWrite>> entry : byShard.entrySet()) {
+            Jedis jedis = null;
+            try {
+                jedis = entry.getKey().getPrimary().getResource();
+                Pipeline pipeline = jedis.pipelined();
+                for (PipelineFlusher.PendingWrite write : entry.getValue()) {
+                    byte[]  binaryId = key(write.getId());
+                    boolean session  = !write.getId().startsWith(BLOB_KEY_PREFIX);
+                    if (write.isExpire()) {
+                        pipeline.expire(binaryId, physicalTtl(write.getTtl()));
+                    } else if (write.isRemove()) {
+                        pipeline.del(binaryId);
+                    } else if (write.getTtl() > 0) {
+                        pipeline.setex(binaryId, physicalTtl(write.getTtl()), write.getData());
+                    } else {
+                        pipeline.set(binaryId, write.getData());
+                    }
+                    if (session && write.isRemove()) {
+                        unindex(pipeline, write.getId());
+                    } else if (session) {
+                        index(pipeline, write.getId(), write.getTtl());
+                    }
+                }
+                pipeline.sync();
+                for (PipelineFlusher.PendingWrite write : entry.getValue()) {
+                    if (!write.isExpire()) {
+                        recordWrite(write.getId());
+                    }
+                }
+            } finally {
+                if (jedis != null) {
+                    jedis.close();
+                }
+            }
+        }
+    }
+
     public int getDatabase() {
 
         return database;
@@ -211,7 +1409,7 @@ public class RedisRepository implements SessionRepository {
     public static void main(String[] args) throws Exception {
 
         RedisRepository redisRepository = new RedisRepository(new ClusterSerializer(), "localhost", 6379, 300, "", 0);
-        Jedis           jedis           = redisRepository.acquireConnection();
+        Jedis           jedis           = redisRepository.acquireConnection("a");
         jedis.set("a".getBytes(), "b".getBytes());
         String b = new String(jedis.get("a".getBytes()));
         System.out.println(b);
@@ -0,0 +1,53 @@
+package com.nxworker.tomcatcluster;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * redis服务端的lua脚本
+ * <p>
+ * sha在本地算好，执行时只发EVALSHA；redis重启、主从切换或者SCRIPT FLUSH之后服务端没有这个脚本，
+ * 收到NOSCRIPT就加载一次再执行，所以不需要在启动时连redis预先加载
+ */
+public class RedisScript {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] script;
+    private final byte[] sha;
+
+    public RedisScript(String script) {
+
+        this.script = script.getBytes(UTF8);
+        this.sha = ContentDigest.sha1Hex(this.script).getBytes(UTF8);
+    }
+
+    public String getSha() {
+
+        return new String(sha, UTF8);
+    }
+
+    /**
+     * 执行脚本，服务端没有就先加载
+     *
+     * @param jedis
+     * @param keys
+     * @param args
+     * @return 脚本的返回值，整数是Long，字符串是byte[]，数组是List
+     */
+    public Object execute(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+
+        try {
+            return jedis.evalsha(sha, keys, args);
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+            jedis.scriptLoad(script);
+            return jedis.evalsha(sha, keys, args);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.nxworker.tomcatcluster;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import redis.clients.jedis.JedisPool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个redis分片，主节点负责写，配置了从节点的话读请求轮流发到从节点
+ */
+public class RedisShard {
+
+    private final Log log = LogFactory.getLog(RedisShard.class);
+
+    private final JedisPool primary;
+
+    private volatile List<JedisPool> replicas = new ArrayList<JedisPool>();
+
+    //轮询从节点的计数
+    private final AtomicInteger next = new AtomicInteger();
+
+    public RedisShard(JedisPool primary) {
+
+        this.primary = primary;
+    }
+
+    public JedisPool getPrimary() {
+
+        return primary;
+    }
+
+    public void setReplicas(List<JedisPool> replicas) {
+
+        this.replicas = new ArrayList<JedisPool>(replicas);
+    }
+
+    public boolean hasReplicas() {
+
+        return !replicas.isEmpty();
+    }
+
+    /**
+     * 轮到的从节点，没有从节点返回主节点
+     *
+     * @return
+     */
+    public JedisPool nextReplica() {
+
+        List<JedisPool> current = replicas;
+        if (current.isEmpty()) {
+            return primary;
+        }
+        return current.get((next.getAndIncrement() & Integer.MAX_VALUE) % current.size());
+    }
+
+    public void destroy() {
+
+        List<JedisPool> pools = new ArrayList<JedisPool>(replicas);
+        pools.add(primary);
+        for (JedisPool pool : pools) {
+            try {
+                pool.destroy();
+            } catch (Exception e) {
+                log.error(e);
+            }
+        }
+    }
+}
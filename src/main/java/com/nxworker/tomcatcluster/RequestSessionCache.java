@@ -0,0 +1,108 @@
+package com.nxworker.tomcatcluster;
+
+import org.apache.catalina.Session;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * 一次请求里面的session缓存
+ * <p>
+ * 同一个请求里面多次findSession只到存储里面取一次，拿到的都是同一个对象；
+ * 请求里修改过的session也记在这里，请求结束时统一保存。请求结束后整个丢掉，不会留在线程上
+ */
+public class RequestSessionCache {
+
+    //请求里面加载过的session，值为null表示存储里面没有
+    private final Map<String, Session> sessions = new HashMap<String, Session>(4);
+
+    //请求里面修改过的session
+    private final Set<Session> dirtySessions = new LinkedHashSet<Session>();
+
+    //请求开始时提前发出去的读取，findSession时再取结果
+    private Map<String, Future<Session>> prefetches;
+
+    public boolean contains(String id) {
+
+        return sessions.containsKey(id);
+    }
+
+    public Session get(String id) {
+
+        return sessions.get(id);
+    }
+
+    public void put(String id, Session session) {
+
+        sessions.put(id, session);
+    }
+
+    public void remove(String id) {
+
+        sessions.remove(id);
+    }
+
+    public void putPrefetch(String id, Future<Session> future) {
+
+        if (prefetches == null) {
+            prefetches = new HashMap<String, Future<Session>>(2);
+        }
+        prefetches.put(id, future);
+    }
+
+    /**
+     * 取出提前发出去的读取，取一次就没了
+     *
+     * @param id
+     * @return 没有提前读返回null
+     */
+    public Future<Session> takePrefetch(String id) {
+
+        return prefetches == null ? null : prefetches.remove(id);
+    }
+
+    /**
+     * 请求里没用到的提前读取，还没开始执行的就不用执行了
+     */
+    public void cancelPrefetches() {
+
+        if (prefetches == null) {
+            return;
+        }
+        for (Future<Session> future : prefetches.values()) {
+            future.cancel(false);
+        }
+        prefetches = null;
+    }
+
+    public void markDirty(Session session) {
+
+        dirtySessions.add(session);
+    }
+
+    public Set<Session> getDirtySessions() {
+
+        return dirtySessions;
+    }
+
+    /**
+     * 请求里面访问过的session
+     *
+     * @return
+     */
+    public List<Session> getSessions() {
+
+        List<Session> result = new ArrayList<Session>(sessions.size());
+        for (Session session : sessions.values()) {
+            if (session != null) {
+                result.add(session);
+            }
+        }
+        return result;
+    }
+}
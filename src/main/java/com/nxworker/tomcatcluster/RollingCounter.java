@@ -0,0 +1,53 @@
+package com.nxworker.tomcatcluster;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 滚动窗口计数，统计最近一分钟的次数
+ * <p>
+ * 每秒一个格子，循环使用，格子上记着是哪一秒的，过期的格子在下次写入时清零，读的时候跳过
+ */
+public class RollingCounter {
+
+    private static final int SLOTS = 60;
+
+    private final AtomicLongArray counts  = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+
+    public void increment() {
+
+        long second = System.currentTimeMillis() / 1000;
+        int  slot   = (int) (second % SLOTS);
+        long old    = seconds.get(slot);
+        if (old != second && seconds.compareAndSet(slot, old, second)) {
+            //抢到的线程清零，同一秒里其他线程的计数最多丢几个
+            counts.set(slot, 0);
+        }
+        counts.incrementAndGet(slot);
+    }
+
+    /**
+     * 最近60秒的总数
+     *
+     * @return
+     */
+    public long sumLastMinute() {
+
+        long now = System.currentTimeMillis() / 1000;
+        long sum = 0;
+        for (int i = 0 ; i < SLOTS ; i++) {
+            if (now - seconds.get(i) < SLOTS) {
+                sum += counts.get(i);
+            }
+        }
+        return sum;
+    }
+
+    public void reset() {
+
+        for (int i = 0 ; i < SLOTS ; i++) {
+            seconds.set(i, 0);
+            counts.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.nxworker.tomcatcluster;
+
+/**
+ * 请求结束时session的保存策略
+ */
+public enum SavePolicy {
+
+    /**
+     * 请求里访问过的session都整个写回去，属性对象被直接修改(比如往list里add)也不会丢
+     */
+    ALWAYS,
+
+    /**
+     * 只写通过setAttribute/removeAttribute修改过的session
+     */
+    DIRTY_ONLY,
+
+    /**
+     * 请求里访问过的session都重新序列化，和加载时的内容摘要比较，有变化才写
+     */
+    CONTENT_HASH
+}
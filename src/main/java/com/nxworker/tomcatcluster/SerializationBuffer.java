@@ -0,0 +1,142 @@
+package com.nxworker.tomcatcluster;
+
+import java.io.OutputStream;
+
+/**
+ * 可重复使用的序列化缓冲
+ * <p>
+ * 每个线程留两个(序列化和压缩各用一个)，用完不释放，下次直接在原来的数组上写，
+ * 省掉ByteArrayOutputStream每次扩容的复制和临时数组。用的时候涨到超过maxRetainedSize的，
+ * 还回来时缩回初始大小，避免偶尔一个特别大的session让每个线程都一直占着大数组
+ */
+public class SerializationBuffer extends OutputStream {
+
+    private static final int INITIAL_SIZE = 8 * 1024;
+
+    //还回来时超过这个大小就不保留
+    protected static volatile int maxRetainedSize = 256 * 1024;
+
+    public static void setMaxRetainedSize(int size) {
+
+        maxRetainedSize = size;
+    }
+
+    private static final ThreadLocal<SerializationBuffer[]> LOCAL = new ThreadLocal<SerializationBuffer[]>() {
+
+        @Override
+        protected SerializationBuffer[] initialValue() {
+
+            return new SerializationBuffer[]{new SerializationBuffer(true), new SerializationBuffer(true)};
+        }
+    };
+
+    private byte[]  buf = new byte[INITIAL_SIZE];
+    private int     count;
+    private boolean inUse;
+
+    //是不是线程缓存的，不是的用完直接丢掉
+    private final boolean pooled;
+
+    private SerializationBuffer(boolean pooled) {
+
+        this.pooled = pooled;
+    }
+
+    /**
+     * 取当前线程空闲的缓冲，都在用就临时新建一个
+     *
+     * @return
+     */
+    public static SerializationBuffer acquire() {
+
+        for (SerializationBuffer buffer : LOCAL.get()) {
+            if (!buffer.inUse) {
+                buffer.inUse = true;
+                buffer.count = 0;
+                return buffer;
+            }
+        }
+        return new SerializationBuffer(false);
+    }
+
+    /**
+     * 用完还回来，之后不能再用这个缓冲和getBuffer拿到的数组
+     */
+    public void release() {
+
+        if (!pooled) {
+            return;
+        }
+        if (buf.length > maxRetainedSize) {
+            buf = new byte[INITIAL_SIZE];
+        }
+        count = 0;
+        inUse = false;
+    }
+
+    /**
+     * 保证还能再写n个字节
+     *
+     * @param n
+     */
+    public void ensureCapacity(int n) {
+
+        if (count + n > buf.length) {
+            byte[] grown = new byte[Math.max(buf.length << 1, count + n)];
+            System.arraycopy(buf, 0, grown, 0, count);
+            buf = grown;
+        }
+    }
+
+    @Override
+    public void write(int b) {
+
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+
+        ensureCapacity(len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * 底层数组，有效数据是[0, size())
+     *
+     * @return
+     */
+    public byte[] getBuffer() {
+
+        return buf;
+    }
+
+    public int size() {
+
+        return count;
+    }
+
+    /**
+     * 直接往底层数组写了数据之后设置长度
+     *
+     * @param count
+     */
+    public void setSize(int count) {
+
+        this.count = count;
+    }
+
+    /**
+     * 复制出刚好大小的数组，交给redis客户端
+     *
+     * @return
+     */
+    public byte[] toByteArray() {
+
+        byte[] result = new byte[count];
+        System.arraycopy(buf, 0, result, 0, count);
+        return result;
+    }
+}
@@ -9,4 +9,16 @@ public interface Serializer {
   byte[] serializeFrom(HttpSession session) throws IOException;
 
   HttpSession deserializeInto(byte[] data, HttpSession session) throws IOException, ClassNotFoundException;
+
+  /**
+   * 单个属性值的序列化，hash存储模式下每个属性单独存一个字段
+   */
+  byte[] serializeAttribute(Object value) throws IOException;
+
+  Object deserializeAttribute(byte[] data) throws IOException, ClassNotFoundException;
+
+  /**
+   * serializeFrom结果的内容摘要，不包括每次访问都会变的访问时间，用来判断session内容有没有变化
+   */
+  long contentDigest(byte[] data, HttpSession session);
 }
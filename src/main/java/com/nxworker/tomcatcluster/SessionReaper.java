@@ -0,0 +1,120 @@
+package com.nxworker.tomcatcluster;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 过期session清理线程，触发HttpSessionListener的销毁事件
+ * <p>
+ * redis自己删过期的key不会通知应用，所以开启后session在redis里比过期时间多留一段宽限期，
+ * 这段时间里请求读不到它。这个线程定时从过期索引里取一批到期的session，取的时候从索引里删掉，
+ * 几个节点一起跑也只有一个节点拿到同一个session；读出来之后再确认一次确实过期了才删，然后触发监听。
+ * 每轮最多处理一批，批与批之间间隔加上随机抖动，大量session同时过期时也不会一下子压到redis上
+ */
+public class SessionReaper implements Runnable {
+
+    private final Log log = LogFactory.getLog(SessionReaper.class);
+
+    private final RedisRepository repository;
+    private final Manager         manager;
+    private final int             batchSize;
+    private final long            intervalMillis;
+    private final Random          random = new Random();
+
+    private final Object lock = new Object();
+
+    private volatile boolean running = true;
+    private          Thread  thread;
+
+    public SessionReaper(RedisRepository repository, Manager manager, int batchSize, long intervalMillis) {
+
+        this.repository = repository;
+        this.manager = manager;
+        this.batchSize = Math.max(1, batchSize);
+        this.intervalMillis = Math.max(10, intervalMillis);
+    }
+
+    public void start() {
+
+        thread = new Thread(this, "ClusterSession-SessionReaper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void run() {
+
+        while (running) {
+            int reaped = 0;
+            try {
+                reaped = reap();
+            } catch (Exception e) {
+                log.warn("清理过期session失败: " + e.getMessage());
+            }
+            //取满一批说明还有积压，只等抖动的那一点时间；wait(0)会一直等，至少等1毫秒
+            long sleep = reaped >= batchSize ? 1 : intervalMillis;
+            sleep += random.nextInt((int) Math.min(Integer.MAX_VALUE, intervalMillis / 4 + 1));
+            synchronized (lock) {
+                if (!running) {
+                    break;
+                }
+                try {
+                    lock.wait(sleep);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 处理一批到期的session
+     *
+     * @return 取到的session数
+     */
+    int reap() {
+
+        List<String> due = repository.claimExpired(batchSize);
+        for (String id : due) {
+            if (!running) {
+                //没处理的redis到时间自己会删，只是不触发监听
+                break;
+            }
+            try {
+                Session session = repository.loadExpired(id, manager);
+                if (session == null) {
+                    //已经被删掉或者redis宽限期也过了
+                    continue;
+                }
+                //取出来之后又被请求保存过的不是真过期，保存的时候已经重新加回索引
+                if (!repository.deleteIfExpired(id)) {
+                    continue;
+                }
+                log.debug("Session " + id + " expired, firing listeners");
+                session.expire();
+            } catch (Exception e) {
+                log.warn("过期session " + id + "处理失败: " + e.getMessage());
+            }
+        }
+        return due.size();
+    }
+
+    public void stop() {
+
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join(intervalMillis * 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
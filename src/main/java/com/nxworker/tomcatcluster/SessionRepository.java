@@ -10,7 +10,14 @@ import java.io.IOException;
  */
 public interface SessionRepository {
 
-    public void save(Session session);
+    /**
+     * 保存session
+     *
+     * @param session
+     * @return 是否真的写了存储，内容没变化跳过写入时返回false
+     * @throws SessionSaveException 写入失败
+     */
+    public boolean save(Session session);
 
     /**
      * 这里要传manager参数，主要就是为了反序列化session的时候，把manager设置进去，session里面有manager,为的是session里面内容有变更时，可以通过manager做保存操作
@@ -0,0 +1,19 @@
+package com.nxworker.tomcatcluster;
+
+/**
+ * session写入存储失败
+ * <p>
+ * 和内容没变化跳过写入区分开，调用方不能把失败当成已经保存过。抛出前session已经整个标记为脏数据，下次保存会整个重写
+ */
+public class SessionSaveException extends RuntimeException {
+
+    public SessionSaveException(String message) {
+
+        super(message);
+    }
+
+    public SessionSaveException(String message, Throwable cause) {
+
+        super(message, cause);
+    }
+}
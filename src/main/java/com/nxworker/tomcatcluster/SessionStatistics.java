@@ -0,0 +1,210 @@
+package com.nxworker.tomcatcluster;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * session统计
+ * <p>
+ * 创建、过期的次数和存活时间，每种存储操作的耗时分布和失败次数，序列化后的大小分布。
+ * 全部是分段计数，请求线程上只有几次无竞争的原子加，可以一直开着
+ */
+public class SessionStatistics {
+
+    public static final int OP_SAVE   = 0;
+    public static final int OP_FIND   = 1;
+    public static final int OP_REMOVE = 2;
+    public static final int OP_EXPIRE = 3;
+
+    private static final String[] OP_NAMES = {"save", "find", "remove", "expire"};
+
+    //各个存储操作的耗时(微秒)和失败次数
+    private final Histogram[]      latencies = new Histogram[OP_NAMES.length];
+    private final StripedCounter[] errors    = new StripedCounter[OP_NAMES.length];
+
+    //序列化后的字节数
+    private final Histogram sizes = new Histogram();
+
+    private final StripedCounter created      = new StripedCounter();
+    private final StripedCounter expired      = new StripedCounter();
+    private final StripedCounter rejected     = new StripedCounter();
+    private final StripedCounter aliveSeconds = new StripedCounter();
+    private final RollingCounter createRate   = new RollingCounter();
+    private final RollingCounter expireRate   = new RollingCounter();
+    private final AtomicLong     maxAlive     = new AtomicLong();
+    private final AtomicLong     maxActive    = new AtomicLong();
+
+    public SessionStatistics() {
+
+        for (int i = 0 ; i < OP_NAMES.length ; i++) {
+            latencies[i] = new Histogram();
+            errors[i] = new StripedCounter();
+        }
+    }
+
+    public void recordLatency(int op, long nanos) {
+
+        latencies[op].record(nanos / 1000);
+    }
+
+    public void recordError(int op) {
+
+        errors[op].increment();
+    }
+
+    public void recordSize(int bytes) {
+
+        sizes.record(bytes);
+    }
+
+    public void sessionCreated() {
+
+        created.increment();
+        createRate.increment();
+    }
+
+    public void sessionRejected() {
+
+        rejected.increment();
+    }
+
+    /**
+     * @param aliveMillis 从创建到过期的时间
+     */
+    public void sessionExpired(long aliveMillis) {
+
+        long seconds = aliveMillis / 1000;
+        expired.increment();
+        expireRate.increment();
+        aliveSeconds.add(seconds);
+        long max;
+        while ((max = maxAlive.get()) < seconds && !maxAlive.compareAndSet(max, seconds)) {
+            //别的线程改了，重试
+        }
+    }
+
+    public void updateMaxActive(long active) {
+
+        long max;
+        while ((max = maxActive.get()) < active && !maxActive.compareAndSet(max, active)) {
+            //别的线程改了，重试
+        }
+    }
+
+    public Histogram getLatency(int op) {
+
+        return latencies[op];
+    }
+
+    public long getErrors(int op) {
+
+        return errors[op].sum();
+    }
+
+    public Histogram getSizes() {
+
+        return sizes;
+    }
+
+    public long getCreated() {
+
+        return created.sum();
+    }
+
+    public void setCreated(long count) {
+
+        created.reset();
+        created.add(count);
+    }
+
+    public long getExpired() {
+
+        return expired.sum();
+    }
+
+    public void setExpired(long count) {
+
+        expired.reset();
+        expired.add(count);
+    }
+
+    public long getRejected() {
+
+        return rejected.sum();
+    }
+
+    public long getMaxAlive() {
+
+        return maxAlive.get();
+    }
+
+    public void setMaxAlive(long seconds) {
+
+        maxAlive.set(seconds);
+    }
+
+    public long getAverageAlive() {
+
+        long count = expired.sum();
+        return count == 0 ? 0 : aliveSeconds.sum() / count;
+    }
+
+    public long getMaxActive() {
+
+        return maxActive.get();
+    }
+
+    public void setMaxActive(long active) {
+
+        maxActive.set(active);
+    }
+
+    public long getCreateRate() {
+
+        return createRate.sumLastMinute();
+    }
+
+    public long getExpireRate() {
+
+        return expireRate.sumLastMinute();
+    }
+
+    /**
+     * 每种存储操作一行：次数、失败次数、p50/p99/p999耗时(微秒)
+     *
+     * @return
+     */
+    public String[] getRepositorySummary() {
+
+        String[] lines = new String[OP_NAMES.length];
+        for (int i = 0 ; i < OP_NAMES.length ; i++) {
+            Histogram latency = latencies[i];
+            lines[i] = OP_NAMES[i] + " count=" + latency.count() + " errors=" + errors[i].sum()
+                    + " p50=" + latency.percentile(50) + "us p99=" + latency.percentile(99)
+                    + "us p999=" + latency.percentile(99.9) + "us";
+        }
+        return lines;
+    }
+
+    public String getSizeSummary() {
+
+        return "count=" + sizes.count() + " mean=" + sizes.mean() + " p50=" + sizes.percentile(50)
+                + " p99=" + sizes.percentile(99) + " p999=" + sizes.percentile(99.9) + " bytes";
+    }
+
+    public void reset() {
+
+        for (int i = 0 ; i < OP_NAMES.length ; i++) {
+            latencies[i].reset();
+            errors[i].reset();
+        }
+        sizes.reset();
+        created.reset();
+        expired.reset();
+        rejected.reset();
+        aliveSeconds.reset();
+        createRate.reset();
+        expireRate.reset();
+        maxAlive.set(0);
+        maxActive.set(0);
+    }
+}
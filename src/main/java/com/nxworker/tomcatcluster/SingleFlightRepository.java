@@ -0,0 +1,93 @@
+package com.nxworker.tomcatcluster;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 合并同一个session的并发读取
+ * <p>
+ * 页面加载时浏览器会带着同一个cookie同时发好几个ajax请求，同一个id正在读的时候，后来的线程不再自己去redis取，
+ * 等第一个线程取回数据后共用这份数据。只共用取回的字节，每个请求各自反序列化出自己的session对象，
+ * 一个请求改了属性或者被invalidate不会影响同时在处理的其他请求，每个请求结束时各自保存
+ */
+public class SingleFlightRepository implements SessionRepository {
+
+    private final SnapshotRepository delegate;
+
+    //正在读的session
+    private final ConcurrentMap<String, FutureTask<LoadedSession>> inFlight = new ConcurrentHashMap<String, FutureTask<LoadedSession>>();
+
+    public SingleFlightRepository(SnapshotRepository delegate) {
+
+        this.delegate = delegate;
+    }
+
+    public Session find(final String id, final Manager manager) throws IOException {
+
+        FutureTask<LoadedSession> task = new FutureTask<LoadedSession>(new Callable<LoadedSession>() {
+
+            public LoadedSession call() throws Exception {
+
+                return delegate.fetch(id, manager);
+            }
+        });
+        FutureTask<LoadedSession> running = inFlight.putIfAbsent(id, task);
+        if (running == null) {
+            //抢到了就在当前线程读，读完马上拿掉，之后的读取重新到存储里取
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(id, task);
+            }
+        }
+
+        LoadedSession loaded;
+        try {
+            loaded = running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for session " + id);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+        //每个请求一个session对象
+        return loaded == null ? null : delegate.restore(loaded, manager);
+    }
+
+    public boolean save(Session session) {
+
+        return delegate.save(session);
+    }
+
+    public void remove(Session session) {
+
+        delegate.remove(session);
+    }
+
+    public void expire(Session session, int seconds) {
+
+        delegate.expire(session, seconds);
+    }
+
+    public void close() {
+
+        delegate.close();
+    }
+}
@@ -0,0 +1,33 @@
+package com.nxworker.tomcatcluster;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+
+import java.io.IOException;
+
+/**
+ * 读取可以分成两步的存储：先从存储取回数据，再反序列化成session。
+ * 合并读取时只取一次数据，每个请求各自反序列化出自己的session对象
+ */
+public interface SnapshotRepository extends SessionRepository {
+
+    /**
+     * 取回session数据，和find一样会刷新过期时间
+     *
+     * @param id
+     * @param manager
+     * @return 不存在返回null
+     * @throws IOException
+     */
+    public LoadedSession fetch(String id, Manager manager) throws IOException;
+
+    /**
+     * 反序列化成新的session对象，每次调用都是不同的对象
+     *
+     * @param loaded
+     * @param manager
+     * @return 数据是空session标记时返回null
+     * @throws IOException
+     */
+    public Session restore(LoadedSession loaded, Manager manager) throws IOException;
+}
@@ -0,0 +1,130 @@
+package com.nxworker.tomcatcluster;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 粘性会话的属主模式
+ * <p>
+ * sessionId后缀是本节点jvmRoute的session由本节点持有，活的session对象一直留在内存里，
+ * 请求直接用内存里的对象，不再每次从redis读和反序列化；修改照常交给下层存储，下层开了批量写入就是异步写到redis，
+ * redis只做备份。其他节点的session只在故障转移时从redis读出来，由manager改成本节点的后缀接管
+ */
+public class StickyOwnerRepository implements SessionRepository {
+
+    private final Log log = LogFactory.getLog(StickyOwnerRepository.class);
+
+    private final SessionRepository delegate;
+    private final String            jvmRoute;
+
+    //本节点持有的session
+    private final ConcurrentMap<String, ClusterSession> owned = new ConcurrentHashMap<String, ClusterSession>();
+
+    public StickyOwnerRepository(SessionRepository delegate, String jvmRoute) {
+
+        this.delegate = delegate;
+        this.jvmRoute = jvmRoute;
+    }
+
+    /**
+     * sessionId的后缀是不是本节点
+     *
+     * @param id
+     * @return
+     */
+    public boolean isLocal(String id) {
+
+        return id.endsWith("." + jvmRoute);
+    }
+
+    /**
+     * 把sessionId的后缀换成本节点，原来没有后缀的直接加上
+     *
+     * @param id
+     * @return
+     */
+    public String localId(String id) {
+
+        int dot = id.lastIndexOf('.');
+        return (dot < 0 ? id : id.substring(0, dot)) + "." + jvmRoute;
+    }
+
+    public List<Session> getOwnedSessions() {
+
+        return new ArrayList<Session>(owned.values());
+    }
+
+    public int getOwnedCount() {
+
+        return owned.size();
+    }
+
+    /**
+     * 检查持有的session有没有过期，过期的由isValid触发expire，
+     * 通知监听器后经过manager.remove从这里和redis里删掉
+     */
+    public void processExpires() {
+
+        for (ClusterSession session : owned.values()) {
+            if (!session.isValid()) {
+                //expire的时候已经删过了，这里防止没删掉的一直留着
+                owned.remove(session.getIdInternal(), session);
+            }
+        }
+    }
+
+    public boolean save(Session session) {
+
+        if (isLocal(session.getIdInternal())) {
+            owned.put(session.getIdInternal(), (ClusterSession) session);
+        }
+        return delegate.save(session);
+    }
+
+    public Session find(String id, Manager manager) throws IOException {
+
+        ClusterSession session = owned.get(id);
+        if (session != null) {
+            return session;
+        }
+
+        Session loaded = delegate.find(id, manager);
+        if (loaded == null || !isLocal(id)) {
+            //其他节点的session不留，等manager接管后改成本节点的id再保存
+            return loaded;
+        }
+
+        //本节点的session不在内存里，一般是重启过，从redis读出来以后接着持有
+        ClusterSession existing = owned.putIfAbsent(id, (ClusterSession) loaded);
+        if (existing != null) {
+            return existing;
+        }
+        log.debug("Reloaded owned session " + id + " from backup");
+        return loaded;
+    }
+
+    public void remove(Session session) {
+
+        owned.remove(session.getIdInternal());
+        delegate.remove(session);
+    }
+
+    public void expire(Session session, int seconds) {
+
+        delegate.expire(session, seconds);
+    }
+
+    public void close() {
+
+        owned.clear();
+        delegate.close();
+    }
+}
@@ -0,0 +1,70 @@
+package com.nxworker.tomcatcluster;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分段计数器
+ * <p>
+ * 线程按线程id散列到不同的格子上累加，读的时候把所有格子加起来，多线程同时计数时不会都抢同一个AtomicLong。
+ * 相邻格子之间隔开一个缓存行，避免伪共享
+ */
+public class StripedCounter {
+
+    //每个格子占16个long(128字节)，中间空出来的只是填充
+    private static final int PADDING = 16;
+
+    static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    /**
+     * CPU数两倍向上取2的幂
+     *
+     * @return
+     */
+    private static int stripes() {
+
+        int count = 1;
+        while (count < Runtime.getRuntime().availableProcessors() * 2) {
+            count <<= 1;
+        }
+        return count;
+    }
+
+    /**
+     * 当前线程对应的格子
+     *
+     * @return
+     */
+    static int stripe() {
+
+        long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 16)) & (STRIPES - 1));
+    }
+
+    public void increment() {
+
+        add(1);
+    }
+
+    public void add(long delta) {
+
+        cells.getAndAdd(stripe() * PADDING, delta);
+    }
+
+    public long sum() {
+
+        long sum = 0;
+        for (int i = 0 ; i < STRIPES ; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    public void reset() {
+
+        for (int i = 0 ; i < STRIPES ; i++) {
+            cells.set(i * PADDING, 0);
+        }
+    }
+}
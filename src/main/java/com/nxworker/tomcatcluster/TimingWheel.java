@@ -0,0 +1,210 @@
+package com.nxworker.tomcatcluster;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分层时间轮，按过期时刻找出到期的定时项
+ * <p>
+ * 每层有slots个槽，第0层一个槽是一个tick，上一层一个槽是下一层转一圈的时间；
+ * 定时项按离到期还有多远放到对应的层，上层的槽转到时再往下层分，最后在第0层到期。
+ * 放入、取消都是O(1)，推进时只看转到的槽，不用扫描所有定时项。
+ * <p>
+ * 过期时刻往后推(session被访问)时不用移动，直接改定时项的过期时刻，槽转到时发现还没到期再重新放；
+ * 往前提的要调用schedule重新放。定时项用双向链表串在槽里，自己带着前后指针，不额外创建节点
+ */
+public class TimingWheel {
+
+    /**
+     * 定时项，过期时刻是毫秒，Long.MAX_VALUE表示不过期
+     */
+    public static class Timer {
+
+        volatile long deadline = Long.MAX_VALUE;
+
+        //所在槽的链表，没放进时间轮时为null
+        Timer prev;
+        Timer next;
+
+        public long getDeadline() {
+
+            return deadline;
+        }
+
+        public void setDeadline(long deadline) {
+
+            this.deadline = deadline;
+        }
+
+        boolean isScheduled() {
+
+            return next != null;
+        }
+    }
+
+    private final long      tickMillis;
+    private final int       bits;
+    private final int       mask;
+    private final int       levels;
+    private final Timer[][] buckets;
+
+    //已经到期但还没被advance取走的，放进来时过期时刻就已经过了
+    private final Timer due = newBucket();
+
+    //已经推进到的tick
+    private long currentTick;
+
+    private int size;
+
+    /**
+     * @param tickMillis    第0层一个槽的毫秒数
+     * @param slotsPerLevel 每层的槽数，会向上取成2的幂
+     * @param levels        层数
+     * @param now           当前时间
+     */
+    public TimingWheel(long tickMillis, int slotsPerLevel, int levels, long now) {
+
+        int bits = 1;
+        while ((1 << bits) < slotsPerLevel && bits < 16) {
+            bits++;
+        }
+        this.tickMillis = Math.max(1, tickMillis);
+        this.bits = bits;
+        this.mask = (1 << bits) - 1;
+        this.levels = Math.max(1, Math.min(levels, 62 / bits));
+        this.buckets = new Timer[this.levels][1 << bits];
+        for (Timer[] level : buckets) {
+            for (int i = 0 ; i < level.length ; i++) {
+                level[i] = newBucket();
+            }
+        }
+        this.currentTick = now / this.tickMillis;
+    }
+
+    private static Timer newBucket() {
+
+        Timer head = new Timer();
+        head.prev = head;
+        head.next = head;
+        return head;
+    }
+
+    /**
+     * 按当前的过期时刻放进时间轮，已经在里面的先取出来
+     *
+     * @param timer
+     */
+    public synchronized void schedule(Timer timer) {
+
+        if (timer.isScheduled()) {
+            unlink(timer);
+        } else {
+            size++;
+        }
+        place(timer);
+    }
+
+    /**
+     * 从时间轮里取出来
+     *
+     * @param timer
+     */
+    public synchronized void cancel(Timer timer) {
+
+        if (timer.isScheduled()) {
+            unlink(timer);
+            size--;
+        }
+    }
+
+    /**
+     * 推进到now，取出过期时刻不晚于now的定时项，取出的不再在时间轮里
+     *
+     * @param now
+     * @return
+     */
+    public synchronized List<Timer> advance(long now) {
+
+        List<Timer> expired = new ArrayList<Timer>();
+        drain(due, now, expired);
+        long target = now / tickMillis;
+        while (currentTick < target) {
+            currentTick++;
+            //上层的槽转到了，先分到下层，从高往低分，分下来的才能在这一轮里继续往下分
+            int top = 0;
+            while (top + 1 < levels && (currentTick & ((1L << (bits * (top + 1))) - 1)) == 0) {
+                top++;
+            }
+            for (int level = top ; level > 0 ; level--) {
+                drain(buckets[level][(int) (currentTick >>> (bits * level)) & mask], now, expired);
+            }
+            drain(buckets[0][(int) currentTick & mask], now, expired);
+        }
+        size -= expired.size();
+        return expired;
+    }
+
+    public synchronized int size() {
+
+        return size;
+    }
+
+    /**
+     * 取出一个槽里的定时项，到期的放进expired，没到期的重新放
+     *
+     * @param bucket
+     * @param now
+     * @param expired
+     */
+    private void drain(Timer bucket, long now, List<Timer> expired) {
+
+        Timer timer = bucket.next;
+        bucket.prev = bucket;
+        bucket.next = bucket;
+        while (timer != bucket) {
+            Timer next = timer.next;
+            timer.prev = null;
+            timer.next = null;
+            if (timer.deadline <= now) {
+                expired.add(timer);
+            } else {
+                place(timer);
+            }
+            timer = next;
+        }
+    }
+
+    private void place(Timer timer) {
+
+        long deadline = timer.deadline;
+        long tick     = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : (deadline + tickMillis - 1) / tickMillis;
+        long delta    = tick - currentTick;
+        Timer bucket;
+        if (delta <= 0) {
+            bucket = due;
+        } else {
+            int level = 0;
+            while (level + 1 < levels && delta >= (1L << (bits * (level + 1)))) {
+                level++;
+            }
+            //超出最上层一圈的先放在最远的槽，转到时还没到期会再放一次
+            long span = 1L << (bits * (level + 1));
+            if (delta >= span) {
+                tick = currentTick + span - 1;
+            }
+            bucket = buckets[level][(int) (tick >>> (bits * level)) & mask];
+        }
+        timer.prev = bucket.prev;
+        timer.next = bucket;
+        bucket.prev.next = timer;
+        bucket.prev = timer;
+    }
+
+    private static void unlink(Timer timer) {
+
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+    }
+}